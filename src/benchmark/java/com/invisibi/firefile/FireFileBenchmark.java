@@ -0,0 +1,121 @@
+package com.invisibi.firefile;
+
+import com.invisibi.firefile.transfer.LocalTransferBackend;
+import com.invisibi.firefile.util.FireFileUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache lookups and end-to-end {@link FireFile#getData()} against an in-memory
+ * {@link LocalTransferBackend} without latency, so the numbers are the library's own overhead.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FireFileBenchmark {
+    private static final String S3_URL = "https://bench.invalid";
+    private static final String S3_BUCKET = "bench";
+
+    @Param({"4096", "262144", "4194304"})
+    public int size;
+
+    private File cachePath;
+    private LocalTransferBackend backend;
+    private byte[] data;
+    private FireFile cached;
+    private FireFile missing;
+    private final AtomicLong nextObject = new AtomicLong();
+
+    @Setup
+    public void setUp() throws Exception {
+        cachePath = File.createTempFile("firefile-bench", "");
+        FireFileUtils.forceDelete(cachePath);
+        backend = new LocalTransferBackend();
+        PriorityExecutor.setThreadPriority(new PriorityExecutor.ThreadPriority() {
+            @Override
+            public void set(boolean background) {
+                // JVM threads keep their default priority
+            }
+        });
+        FireFile.initialize(cachePath, backend, S3_URL, S3_BUCKET, new FireFileOptions.Builder()
+                .maxCacheBytes(256 * FireFileUtils.ONE_MB)
+                .build());
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+        cached = remoteFile("cached");
+        cached.getData();
+        missing = new FireFile(new FireFile.State.Builder()
+                .name("missing")
+                .url(S3_URL + "/" + S3_BUCKET + "/" + FireFileController.DEFAULT_SUB_FOLDER + "/missing")
+                .build());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        backend.shutdown();
+        FireFileUtils.deleteDirectory(cachePath);
+    }
+
+    @Benchmark
+    public boolean isDataAvailableHit() {
+        return cached.isDataAvailable();
+    }
+
+    @Benchmark
+    public boolean isDataAvailableMiss() {
+        return missing.isDataAvailable();
+    }
+
+    @Benchmark
+    public byte[] getDataCached() throws Exception {
+        return cached.getData();
+    }
+
+    @Benchmark
+    public byte[] getDataDownload(Download download) throws Exception {
+        return download.file.getData();
+    }
+
+    /**
+     * A file that is in the backend but not in the cache yet, fresh for every invocation.
+     */
+    @State(Scope.Thread)
+    public static class Download {
+        private FireFile file;
+
+        @Setup(Level.Invocation)
+        public void setUp(FireFileBenchmark benchmark) throws Exception {
+            file = benchmark.remoteFile("remote-" + benchmark.nextObject.incrementAndGet());
+        }
+    }
+
+    private FireFile remoteFile(final String objectId) throws IOException {
+        final String key = FireFileController.DEFAULT_SUB_FOLDER + "/" + objectId;
+        backend.put(key, data);
+        return new FireFile(new FireFile.State.Builder()
+                .name(objectId)
+                .url(S3_URL + "/" + S3_BUCKET + "/" + key)
+                .build());
+    }
+}
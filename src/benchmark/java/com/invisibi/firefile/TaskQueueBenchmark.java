@@ -0,0 +1,65 @@
+package com.invisibi.firefile;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import bolts.Continuation;
+import bolts.Task;
+
+/**
+ * Cost of {@link TaskQueue#enqueue} for work that completes immediately, with one queue shared by
+ * all benchmark threads, like the calls of several callers on the same {@link FireFile}. Under
+ * contention enqueued work can complete after the call returns; each iteration drains its queue
+ * so that no backlog carries over into the next one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TaskQueueBenchmark {
+    private static final Continuation<Void, Task<Void>> PASS_THROUGH = new Continuation<Void, Task<Void>>() {
+        @Override
+        public Task<Void> then(Task<Void> toAwait) throws Exception {
+            return toAwait;
+        }
+    };
+
+    private TaskQueue taskQueue;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        taskQueue = new TaskQueue();
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        taskQueue.waitUntilFinished();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Task<Void> enqueue() {
+        return taskQueue.enqueue(PASS_THROUGH);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Task<Void> enqueueContended() {
+        return taskQueue.enqueue(PASS_THROUGH);
+    }
+}
@@ -0,0 +1,122 @@
+package com.invisibi.firefile.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copy and read paths of {@link FireFileIOUtils} and {@link FireFileUtils}. Every thread works on
+ * its own files, so {@code -t} measures how they scale rather than file system contention on a
+ * single file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FileIOBenchmark {
+    @Param({"4096", "262144", "4194304", "33554432"})
+    public int size;
+
+    private File directory;
+    private File source;
+    private File copy;
+    private File moved;
+    private byte[] data;
+    private boolean sourceMoved;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = File.createTempFile("firefile-bench", "");
+        FireFileUtils.forceDelete(directory);
+        if (!directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        data = new byte[size];
+        new Random(size).nextBytes(data);
+        source = new File(directory, "source");
+        copy = new File(directory, "copy");
+        moved = new File(directory, "moved");
+        FireFileUtils.writeByteArrayToFile(source, data);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        FireFileUtils.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public long copyLarge() throws IOException {
+        return FireFileIOUtils.copyLarge(new ByteArrayInputStream(data), DISCARD);
+    }
+
+    @Benchmark
+    public byte[] toByteArrayFromStream() throws IOException {
+        final FileInputStream input = new FileInputStream(sourceFile());
+        try {
+            return FireFileIOUtils.toByteArray(input);
+        } finally {
+            FireFileIOUtils.closeQuietly(input);
+        }
+    }
+
+    @Benchmark
+    public byte[] readFileToByteArray() throws IOException {
+        return FireFileUtils.readFileToByteArray(sourceFile());
+    }
+
+    @Benchmark
+    public File copyFile() throws IOException {
+        FireFileUtils.deleteQuietly(copy);
+        FireFileUtils.copyFile(sourceFile(), copy);
+        return copy;
+    }
+
+    /**
+     * Moves the file back and forth, so each invocation is a single rename within one directory.
+     */
+    @Benchmark
+    public File moveFile() throws IOException {
+        if (sourceMoved) {
+            FireFileUtils.moveFile(moved, source);
+        } else {
+            FireFileUtils.moveFile(source, moved);
+        }
+        sourceMoved = !sourceMoved;
+        return sourceFile();
+    }
+
+    private File sourceFile() {
+        return sourceMoved ? moved : source;
+    }
+
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+            // discard
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            // discard
+        }
+    };
+}
@@ -0,0 +1,86 @@
+package com.invisibi.firefile;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import bolts.Continuation;
+import bolts.Task;
+
+/**
+ * Warms the cache for a batch of files, at most {@code concurrency} downloads at a time, in order
+ * except that prioritized files go first. Files that are already cached cost a single disk check.
+ */
+class BatchPrefetch {
+    private final List<FireFile.State> states;
+    private final int concurrency;
+    private final FireFileController controller;
+    private final Task<Void> cancellationToken;
+    private final boolean[] claimed;
+    private int next;
+
+    BatchPrefetch(List<FireFile.State> states, int concurrency, FireFileController controller, Task<Void> cancellationToken) {
+        this.states = states;
+        this.concurrency = Math.max(concurrency, 1);
+        this.controller = controller;
+        this.cancellationToken = cancellationToken;
+        claimed = new boolean[states.size()];
+    }
+
+    /**
+     * @return a task that completes once every file is cached or has failed; it is cancelled when
+     * the batch was cancelled before it got through all files
+     */
+    Task<Void> start() {
+        final List<Task<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(concurrency, states.size()); i++) {
+            workers.add(prefetchNext());
+        }
+        return Task.whenAll(workers).continueWithTask(new Continuation<Void, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<Void> task) throws Exception {
+                return isCancelled() ? Task.<Void>cancelled() : Task.<Void>forResult(null);
+            }
+        });
+    }
+
+    private Task<Void> prefetchNext() {
+        if (isCancelled()) {
+            return Task.forResult(null);
+        }
+        final FireFile.State state = claimNext();
+        if (state == null) {
+            return Task.forResult(null);
+        }
+        // a failed prefetch only means a later cache miss
+        return controller.prefetchAsync(state, cancellationToken).continueWithTask(new Continuation<Void, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<Void> task) throws Exception {
+                return prefetchNext();
+            }
+        });
+    }
+
+    /**
+     * Takes the first prioritized file that is still pending, or else the next one in order.
+     */
+    private synchronized FireFile.State claimNext() {
+        for (int i = next; i < states.size(); i++) {
+            if (!claimed[i] && controller.isPrioritized(states.get(i))) {
+                claimed[i] = true;
+                return states.get(i);
+            }
+        }
+        while (next < states.size() && claimed[next]) {
+            next++;
+        }
+        if (next >= states.size()) {
+            return null;
+        }
+        claimed[next] = true;
+        return states.get(next++);
+    }
+
+    private boolean isCancelled() {
+        return cancellationToken != null && cancellationToken.isCancelled();
+    }
+}
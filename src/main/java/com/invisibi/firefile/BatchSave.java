@@ -0,0 +1,111 @@
+package com.invisibi.firefile;
+
+import com.invisibi.firefile.callback.ProgressCallback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bolts.Continuation;
+import bolts.Task;
+import bolts.TaskCompletionSource;
+
+/**
+ * Saves a batch of files, at most {@code concurrency} at a time, and reports a single progress
+ * value weighted by the number of bytes each file has to upload.
+ */
+class BatchSave {
+    private final List<FireFile> files;
+    private final int concurrency;
+    private final ProgressCallback progressCallback;
+    private final List<TaskCompletionSource<Void>> results;
+    private final long[] sizes;
+    private final long[] uploaded;
+    private final long totalSize;
+    // guarded by this
+    private long uploadedSize;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * @param progressCallback called from any thread, typically a {@link ProgressDispatcher} channel
+     */
+    BatchSave(List<FireFile> files, int concurrency, ProgressCallback progressCallback) {
+        this.files = files;
+        this.concurrency = Math.max(concurrency, 1);
+        this.progressCallback = progressCallback;
+        results = new ArrayList<>(files.size());
+        sizes = new long[files.size()];
+        uploaded = new long[files.size()];
+        long total = 0;
+        for (int i = 0; i < files.size(); i++) {
+            results.add(new TaskCompletionSource<Void>());
+            sizes[i] = files.get(i).getSaveSize();
+            total += sizes[i];
+        }
+        totalSize = total;
+    }
+
+    /**
+     * @return a task that completes once every file is done, with one completed task per file in
+     * the order given. The task itself never fails.
+     */
+    Task<List<Task<Void>>> start() {
+        final List<Task<Void>> tasks = new ArrayList<>(results.size());
+        for (TaskCompletionSource<Void> result : results) {
+            tasks.add(result.getTask());
+        }
+        for (int i = 0; i < Math.min(concurrency, files.size()); i++) {
+            saveNext();
+        }
+        return Task.whenAll(tasks).continueWith(new Continuation<Void, List<Task<Void>>>() {
+            @Override
+            public List<Task<Void>> then(Task<Void> task) throws Exception {
+                return tasks;
+            }
+        });
+    }
+
+    private void saveNext() {
+        final int index = next.getAndIncrement();
+        if (index >= files.size()) {
+            return;
+        }
+        // raw progress, so that only the batch total goes through the dispatcher
+        files.get(index).saveInBackgroundDirect(new ProgressCallback() {
+            @Override
+            public void done(Integer percentDone) {
+                onProgress(index, sizes[index] * percentDone / 100);
+            }
+        }).continueWith(new Continuation<Void, Void>() {
+            @Override
+            public Void then(Task<Void> task) throws Exception {
+                if (!task.isFaulted() && !task.isCancelled()) {
+                    onProgress(index, sizes[index]);
+                }
+                final TaskCompletionSource<Void> result = results.get(index);
+                if (task.isCancelled()) {
+                    result.trySetCancelled();
+                } else if (task.isFaulted()) {
+                    result.trySetError(task.getError());
+                } else {
+                    result.trySetResult(null);
+                }
+                saveNext();
+                return null;
+            }
+        });
+    }
+
+    private void onProgress(final int index, final long bytes) {
+        if (progressCallback == null || totalSize <= 0) {
+            return;
+        }
+        final int percentDone;
+        synchronized (this) {
+            uploadedSize += bytes - uploaded[index];
+            uploaded[index] = bytes;
+            percentDone = (int) (uploadedSize * 100 / totalSize);
+        }
+        progressCallback.done(percentDone);
+    }
+}
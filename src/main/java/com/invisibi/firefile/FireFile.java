@@ -7,19 +7,22 @@ import com.amazonaws.regions.Regions;
 import com.invisibi.firefile.callback.GetDataCallback;
 import com.invisibi.firefile.callback.GetDataStreamCallback;
 import com.invisibi.firefile.callback.GetFileCallback;
+import com.invisibi.firefile.callback.GetMappedDataCallback;
 import com.invisibi.firefile.callback.ProgressCallback;
 import com.invisibi.firefile.callback.SaveCallback;
+import com.invisibi.firefile.transfer.TransferBackend;
 import com.invisibi.firefile.util.FireFileTaskUtils;
 import com.invisibi.firefile.util.FireFileUtils;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.IOException;
 import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.Callable;
 
 import bolts.Continuation;
 import bolts.Task;
@@ -29,7 +32,7 @@ import bolts.TaskCompletionSource;
  * Created by Tiny on 4/27/16.
  */
 public class FireFile {
-    private static final int MAX_FILE_SIZE = 10 * 1048576;
+    private static final int MAX_DATA_SIZE = 10 * 1048576;
     private static String s3URL;
     private static String s3Bucket;
     private static FireFileController fFileController;
@@ -41,22 +44,7 @@ public class FireFile {
     private Set<TaskCompletionSource> currentTasks = Collections.synchronizedSet(new HashSet<TaskCompletionSource>());
 
     private static ProgressCallback progressCallbackOnMainThread(final ProgressCallback progressCallback) {
-        if (progressCallback == null) {
-            return null;
-        }
-
-        return new ProgressCallback() {
-            @Override
-            public void done(final Integer percentDone) {
-                Task.call(new Callable<Void>() {
-                    @Override
-                    public Void call() throws Exception {
-                        progressCallback.done(percentDone);
-                        return null;
-                    }
-                }, FireFileExecutors.main());
-            }
-        };
+        return fFileController.getProgressDispatcher().wrap(progressCallback);
     }
 
     public static class State {
@@ -121,7 +109,29 @@ public class FireFile {
     }
 
     public static void initialize(final Context context, final String awsIdentityPoolId, final String s3URL, final String s3Bucket, final Regions s3Regions) {
-        fFileController = new FireFileController(context, awsIdentityPoolId, s3Regions, s3URL, s3Bucket);
+        initialize(context, awsIdentityPoolId, s3URL, s3Bucket, s3Regions, new FireFileOptions.Builder().build());
+    }
+
+    public static void initialize(final Context context, final String awsIdentityPoolId, final String s3URL, final String s3Bucket, final Regions s3Regions, final FireFileOptions options) {
+        fFileController = new FireFileController(context, awsIdentityPoolId, s3Regions, s3URL, s3Bucket, options);
+        FireFile.s3URL = s3URL;
+        FireFile.s3Bucket = s3Bucket;
+    }
+
+    public static void initialize(final Context context, final TransferBackend transferBackend, final String s3URL, final String s3Bucket) {
+        initialize(context, transferBackend, s3URL, s3Bucket, new FireFileOptions.Builder().build());
+    }
+
+    public static void initialize(final Context context, final TransferBackend transferBackend, final String s3URL, final String s3Bucket, final FireFileOptions options) {
+        initialize(new File(context.getCacheDir(), "FFile"), transferBackend, s3URL, s3Bucket, options);
+    }
+
+    public static void initialize(final File cachePath, final TransferBackend transferBackend, final String s3URL, final String s3Bucket) {
+        initialize(cachePath, transferBackend, s3URL, s3Bucket, new FireFileOptions.Builder().build());
+    }
+
+    public static void initialize(final File cachePath, final TransferBackend transferBackend, final String s3URL, final String s3Bucket, final FireFileOptions options) {
+        fFileController = new FireFileController(cachePath, transferBackend, s3URL, s3Bucket, options);
         FireFile.s3URL = s3URL;
         FireFile.s3Bucket = s3Bucket;
     }
@@ -139,16 +149,13 @@ public class FireFile {
 
     public FireFile(final File file, final String contentType) {
         this(new State.Builder().name(file.getName()).mimeType(contentType).build());
-        if (file.length() > MAX_FILE_SIZE) {
-            throw new IllegalArgumentException(String.format("FFile must be less than %d bytes", MAX_FILE_SIZE));
-        }
         this.file = file;
     }
 
     public FireFile(final String name, final byte[] data, final String contentType) {
         this(new State.Builder().name(name).mimeType(contentType).build());
-        if (data.length > MAX_FILE_SIZE) {
-            throw new IllegalArgumentException(String.format("FFile must be less than %d bytes", MAX_FILE_SIZE));
+        if (data.length > MAX_DATA_SIZE) {
+            throw new IllegalArgumentException(String.format("FFile must be less than %d bytes", MAX_DATA_SIZE));
         }
         this.data = data;
     }
@@ -169,6 +176,24 @@ public class FireFile {
         this.state = state;
     }
 
+    /**
+     * Forwards {@link android.content.ComponentCallbacks2#onTrimMemory(int)} to the in-memory
+     * cache tier, if one is enabled.
+     */
+    public static void onTrimMemory(final int level) {
+        if (fFileController != null && fFileController.getMemoryCache() != null) {
+            fFileController.getMemoryCache().trimMemory(level);
+        }
+    }
+
+    /**
+     * @return the metrics of all FireFile operations; they stay empty unless enabled with
+     * {@link FireFileOptions.Builder#metricsEnabled(boolean)}
+     */
+    public static FireFileMetrics getMetrics() {
+        return fFileController.getMetrics();
+    }
+
     public State getState() {
         return state;
     }
@@ -211,9 +236,11 @@ public class FireFile {
         }
 
         // Wait for our turn in the queue, then check state to decide whether to no-op.
+        final long queuedAt = fFileController.getMetrics().start();
         return toAwait.continueWithTask(new Continuation<Void, Task<Void>>() {
             @Override
             public Task<Void> then(Task<Void> task) throws Exception {
+                fFileController.getMetrics().record(FireFileMetrics.Operation.QUEUE_WAIT, queuedAt);
                 if (!isDirty()) {
                     return Task.forResult(null);
                 }
@@ -226,13 +253,13 @@ public class FireFile {
                     saveTask = fFileController.saveAsync(
                             state,
                             data,
-                            progressCallbackOnMainThread(uploadProgressCallback),
+                            uploadProgressCallback,
                             cancellationToken);
                 } else {
                     saveTask = fFileController.saveAsync(
                             state,
                             file,
-                            progressCallbackOnMainThread(uploadProgressCallback),
+                            uploadProgressCallback,
                             cancellationToken);
                 }
 
@@ -252,6 +279,14 @@ public class FireFile {
     }
 
     public Task<Void> saveInBackground(final ProgressCallback uploadProgressCallback) {
+        return saveInBackgroundDirect(progressCallbackOnMainThread(uploadProgressCallback));
+    }
+
+    /**
+     * Like {@link #saveInBackground(ProgressCallback)}, but calls {@code uploadProgressCallback}
+     * on whatever thread reports the progress, for callers that dispatch it themselves.
+     */
+    Task<Void> saveInBackgroundDirect(final ProgressCallback uploadProgressCallback) {
         final Task<Void>.TaskCompletionSource cts = Task.create();
         currentTasks.add(cts);
 
@@ -287,6 +322,85 @@ public class FireFile {
         FireFileTaskUtils.callbackOnMainThreadAsync(saveInBackground(), callback);
     }
 
+    /**
+     * Saves {@code files} through a pool of at most {@link FireFileOptions#batchSaveConcurrency()}
+     * concurrent uploads.
+     *
+     * @param progressCallback receives the progress of the whole batch, weighted by file size
+     * @return a task that completes once every file is done, with one completed task per file in
+     * the order of {@code files}
+     */
+    public static Task<List<Task<Void>>> saveAllInBackground(final Collection<FireFile> files, final ProgressCallback progressCallback) {
+        return new BatchSave(new ArrayList<>(files), fFileController.getBatchSaveConcurrency(),
+                fFileController.getProgressDispatcher().wrap(progressCallback)).start();
+    }
+
+    public static Task<List<Task<Void>>> saveAllInBackground(final Collection<FireFile> files) {
+        return saveAllInBackground(files, (ProgressCallback) null);
+    }
+
+    /**
+     * @param saveCallback receives the first failure of the batch, or {@code null}
+     */
+    public static void saveAllInBackground(final Collection<FireFile> files, final SaveCallback saveCallback, final ProgressCallback progressCallback) {
+        FireFileTaskUtils.callbackOnMainThreadAsync(saveAllInBackground(files, progressCallback).onSuccessTask(new Continuation<List<Task<Void>>, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<List<Task<Void>>> task) throws Exception {
+                for (Task<Void> result : task.getResult()) {
+                    if (result.isFaulted() || result.isCancelled()) {
+                        return result;
+                    }
+                }
+                return Task.forResult(null);
+            }
+        }), saveCallback);
+    }
+
+    public static void saveAllInBackground(final Collection<FireFile> files, final SaveCallback saveCallback) {
+        saveAllInBackground(files, saveCallback, null);
+    }
+
+    /**
+     * Downloads {@code files} into the cache, skipping the ones that are cached already, through
+     * at most {@link FireFileOptions#prefetchConcurrency()} concurrent downloads that hold back
+     * while foreground fetches are running. Failures are ignored.
+     *
+     * @param cancellationToken cancels the files that have not been prefetched yet when it is
+     *                          cancelled, e.g. through {@link TaskCompletionSource#trySetCancelled()}
+     */
+    public static Task<Void> prefetchInBackground(final Collection<FireFile> files, final Task<Void> cancellationToken) {
+        final List<State> states = new ArrayList<>(files.size());
+        for (FireFile file : files) {
+            states.add(file.getState());
+        }
+        return new BatchPrefetch(states, fFileController.getPrefetchConcurrency(), fFileController, cancellationToken).start();
+    }
+
+    public static Task<Void> prefetchInBackground(final Collection<FireFile> files) {
+        return prefetchInBackground(files, null);
+    }
+
+    /**
+     * Tells FireFile that this file is needed now, e.g. because it scrolled into view. Queued
+     * background work for it moves to the front and a pending prefetch of it starts right away.
+     */
+    public void prioritize() {
+        fFileController.prioritize(state);
+    }
+
+    /**
+     * @return the number of bytes a save still has to upload
+     */
+    long getSaveSize() {
+        if (!isDirty()) {
+            return 0;
+        }
+        if (data != null) {
+            return data.length;
+        }
+        return file != null ? file.length() : 0;
+    }
+
     public byte[] getData() throws Exception {
         return FireFileTaskUtils.wait(getDataInBackground());
     }
@@ -295,21 +409,10 @@ public class FireFile {
         final TaskCompletionSource cts = new TaskCompletionSource();
         currentTasks.add(cts);
 
-        return taskQueue.enqueue(new Continuation<Void, Task<byte[]>>() {
+        return taskQueue.enqueueShared(new Continuation<Void, Task<byte[]>>() {
             @Override
             public Task<byte[]> then(Task<Void> toAwait) throws Exception {
-                return fetchInBackground(progressCallback, toAwait, cts.getTask()).onSuccess(new Continuation<File, byte[]>() {
-                    @Override
-                    public byte[] then(Task<File> task) throws Exception {
-                        File file = task.getResult();
-                        try {
-                            return FireFileUtils.readFileToByteArray(file);
-                        } catch (IOException e) {
-                            // do nothing
-                        }
-                        return null;
-                    }
-                });
+                return fetchDataInBackground(progressCallback, toAwait, cts.getTask());
             }
         }).continueWithTask(new Continuation<byte[], Task<byte[]>>() {
             @Override
@@ -333,6 +436,92 @@ public class FireFile {
         FireFileTaskUtils.callbackOnMainThreadAsync(getDataInBackground(), dataCallback);
     }
 
+    public byte[] getDataRange(final long offset, final int length) throws Exception {
+        return FireFileTaskUtils.wait(getDataRangeInBackground(offset, length));
+    }
+
+    /**
+     * Reads {@code length} bytes starting at {@code offset}, fetching only the parts of the range
+     * that are not cached yet. The result is shorter than {@code length} at the end of the file.
+     *
+     * @throws IllegalArgumentException if {@code offset} or {@code length} is negative
+     */
+    public Task<byte[]> getDataRangeInBackground(final long offset, final int length) {
+        FireFileUtils.checkRange(offset, length);
+        final TaskCompletionSource cts = new TaskCompletionSource();
+        currentTasks.add(cts);
+
+        return taskQueue.enqueueShared(new Continuation<Void, Task<byte[]>>() {
+            @Override
+            public Task<byte[]> then(final Task<Void> toAwait) throws Exception {
+                return toAwait.onSuccessTask(new Continuation<Void, Task<byte[]>>() {
+                    @Override
+                    public Task<byte[]> then(Task<Void> task) throws Exception {
+                        if (cts.getTask().isCancelled()) {
+                            return Task.cancelled();
+                        }
+                        return fFileController.fetchRangeAsync(state, offset, length, cts.getTask());
+                    }
+                });
+            }
+        }).continueWithTask(new Continuation<byte[], Task<byte[]>>() {
+            @Override
+            public Task<byte[]> then(Task<byte[]> task) throws Exception {
+                cts.trySetResult(null); // release
+                currentTasks.remove(cts);
+                return task;
+            }
+        });
+    }
+
+    public void getDataRangeInBackground(final long offset, final int length, final GetDataCallback dataCallback) {
+        FireFileTaskUtils.callbackOnMainThreadAsync(getDataRangeInBackground(offset, length), dataCallback);
+    }
+
+    public MappedByteBuffer getMappedData() throws Exception {
+        return FireFileTaskUtils.wait(getMappedDataInBackground());
+    }
+
+    /**
+     * Fetches the file like {@link #getFileInBackground(ProgressCallback)} and maps the cached copy
+     * read-only instead of copying it onto the heap.
+     */
+    public Task<MappedByteBuffer> getMappedDataInBackground(final ProgressCallback progressCallback) {
+        final TaskCompletionSource cts = new TaskCompletionSource();
+        currentTasks.add(cts);
+
+        return taskQueue.enqueueShared(new Continuation<Void, Task<MappedByteBuffer>>() {
+            @Override
+            public Task<MappedByteBuffer> then(Task<Void> toAwait) throws Exception {
+                return fetchInBackground(progressCallback, toAwait, cts.getTask()).onSuccess(new Continuation<File, MappedByteBuffer>() {
+                    @Override
+                    public MappedByteBuffer then(Task<File> task) throws Exception {
+                        return FireFileUtils.mapReadOnly(task.getResult());
+                    }
+                }, FireFileExecutors.io());
+            }
+        }).continueWithTask(new Continuation<MappedByteBuffer, Task<MappedByteBuffer>>() {
+            @Override
+            public Task<MappedByteBuffer> then(Task<MappedByteBuffer> task) throws Exception {
+                cts.trySetResult(null); // release
+                currentTasks.remove(cts);
+                return task;
+            }
+        });
+    }
+
+    public Task<MappedByteBuffer> getMappedDataInBackground() {
+        return getMappedDataInBackground((ProgressCallback) null);
+    }
+
+    public void getMappedDataInBackground(final GetMappedDataCallback mappedDataCallback, final ProgressCallback progressCallback) {
+        FireFileTaskUtils.callbackOnMainThreadAsync(getMappedDataInBackground(progressCallback), mappedDataCallback);
+    }
+
+    public void getMappedDataInBackground(final GetMappedDataCallback mappedDataCallback) {
+        FireFileTaskUtils.callbackOnMainThreadAsync(getMappedDataInBackground(), mappedDataCallback);
+    }
+
     public File getFile() throws Exception {
         return FireFileTaskUtils.wait(getFileInBackground());
     }
@@ -341,7 +530,7 @@ public class FireFile {
         final TaskCompletionSource cts = new TaskCompletionSource();
         currentTasks.add(cts);
 
-        return taskQueue.enqueue(new Continuation<Void, Task<File>>() {
+        return taskQueue.enqueueShared(new Continuation<Void, Task<File>>() {
             @Override
             public Task<File> then(Task<Void> toAwait) throws Exception {
                 return fetchInBackground(progressCallback, toAwait, cts.getTask());
@@ -376,19 +565,57 @@ public class FireFile {
         final TaskCompletionSource cts = new TaskCompletionSource();
         currentTasks.add(cts);
 
-        return taskQueue.enqueue(new Continuation<Void, Task<InputStream>>() {
+        return taskQueue.enqueueShared(new Continuation<Void, Task<InputStream>>() {
             @Override
             public Task<InputStream> then(Task<Void> toAwait) throws Exception {
-                return fetchInBackground(progressCallback, toAwait, cts.getTask()).onSuccess(new Continuation<File, InputStream>() {
+                return fetchStreamInBackground(progressCallback, toAwait, cts.getTask());
+            }
+        }).continueWithTask(new Continuation<InputStream, Task<InputStream>>() {
+            @Override
+            public Task<InputStream> then(Task<InputStream> task) throws Exception {
+                cts.trySetResult(null); // release
+                currentTasks.remove(cts);
+                return task;
+            }
+        });
+    }
+
+    public boolean revalidate() throws Exception {
+        return FireFileTaskUtils.wait(revalidateInBackground());
+    }
+
+    /**
+     * Brings the cached copy up to date with the stored object, downloading it again only when it
+     * has changed since it was cached. Waits for running reads of this file and holds back later
+     * ones until done.
+     *
+     * @return a task with whether new content was downloaded
+     */
+    public Task<Boolean> revalidateInBackground(final ProgressCallback progressCallback) {
+        if (state.url() == null) {
+            return Task.forResult(false);
+        }
+        final TaskCompletionSource cts = new TaskCompletionSource();
+        currentTasks.add(cts);
+
+        return taskQueue.enqueue(new Continuation<Void, Task<Boolean>>() {
+            @Override
+            public Task<Boolean> then(final Task<Void> toAwait) throws Exception {
+                final long queuedAt = fFileController.getMetrics().start();
+                return toAwait.onSuccessTask(new Continuation<Void, Task<Boolean>>() {
                     @Override
-                    public InputStream then(Task<File> task) throws Exception {
-                        return new FileInputStream(task.getResult());
+                    public Task<Boolean> then(Task<Void> task) throws Exception {
+                        fFileController.getMetrics().record(FireFileMetrics.Operation.QUEUE_WAIT, queuedAt);
+                        if (cts.getTask().isCancelled()) {
+                            return Task.cancelled();
+                        }
+                        return fFileController.revalidateAsync(state, progressCallbackOnMainThread(progressCallback), cts.getTask());
                     }
                 });
             }
-        }).continueWithTask(new Continuation<InputStream, Task<InputStream>>() {
+        }).continueWithTask(new Continuation<Boolean, Task<Boolean>>() {
             @Override
-            public Task<InputStream> then(Task<InputStream> task) throws Exception {
+            public Task<Boolean> then(Task<Boolean> task) throws Exception {
                 cts.trySetResult(null); // release
                 currentTasks.remove(cts);
                 return task;
@@ -396,14 +623,20 @@ public class FireFile {
         });
     }
 
+    public Task<Boolean> revalidateInBackground() {
+        return revalidateInBackground(null);
+    }
+
     private Task<File> fetchInBackground(final ProgressCallback progressCallback, final Task<Void> toAwait, final Task<Void> cancellationToken) {
         if (cancellationToken != null && cancellationToken.isCancelled()) {
             return Task.cancelled();
         }
 
+        final long queuedAt = fFileController.getMetrics().start();
         return toAwait.onSuccessTask(new Continuation<Void, Task<File>>() {
             @Override
             public Task<File> then(final Task<Void> task) throws Exception {
+                fFileController.getMetrics().record(FireFileMetrics.Operation.QUEUE_WAIT, queuedAt);
                 if (cancellationToken != null && cancellationToken.isCancelled()) {
                     return Task.cancelled();
                 }
@@ -412,6 +645,42 @@ public class FireFile {
         });
     }
 
+    private Task<byte[]> fetchDataInBackground(final ProgressCallback progressCallback, final Task<Void> toAwait, final Task<Void> cancellationToken) {
+        if (cancellationToken != null && cancellationToken.isCancelled()) {
+            return Task.cancelled();
+        }
+
+        final long queuedAt = fFileController.getMetrics().start();
+        return toAwait.onSuccessTask(new Continuation<Void, Task<byte[]>>() {
+            @Override
+            public Task<byte[]> then(final Task<Void> task) throws Exception {
+                fFileController.getMetrics().record(FireFileMetrics.Operation.QUEUE_WAIT, queuedAt);
+                if (cancellationToken != null && cancellationToken.isCancelled()) {
+                    return Task.cancelled();
+                }
+                return fFileController.fetchDataAsync(state, progressCallbackOnMainThread(progressCallback), cancellationToken);
+            }
+        });
+    }
+
+    private Task<InputStream> fetchStreamInBackground(final ProgressCallback progressCallback, final Task<Void> toAwait, final Task<Void> cancellationToken) {
+        if (cancellationToken != null && cancellationToken.isCancelled()) {
+            return Task.cancelled();
+        }
+
+        final long queuedAt = fFileController.getMetrics().start();
+        return toAwait.onSuccessTask(new Continuation<Void, Task<InputStream>>() {
+            @Override
+            public Task<InputStream> then(final Task<Void> task) throws Exception {
+                fFileController.getMetrics().record(FireFileMetrics.Operation.QUEUE_WAIT, queuedAt);
+                if (cancellationToken != null && cancellationToken.isCancelled()) {
+                    return Task.cancelled();
+                }
+                return fFileController.fetchStreamAsync(state, progressCallbackOnMainThread(progressCallback), cancellationToken);
+            }
+        });
+    }
+
     public Task<InputStream> getDataStreamInBackground() {
         return getDataStreamInBackground((ProgressCallback) null);
     }
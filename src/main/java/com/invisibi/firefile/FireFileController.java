@@ -2,24 +2,42 @@ package com.invisibi.firefile;
 
 import android.content.Context;
 import android.text.TextUtils;
-import android.util.Log;
 
-import com.amazonaws.auth.CognitoCachingCredentialsProvider;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
-import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
 import com.amazonaws.regions.Regions;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.invisibi.firefile.cache.DiskCache;
+import com.invisibi.firefile.cache.MemoryCache;
+import com.invisibi.firefile.cache.SparseCacheFile;
 import com.invisibi.firefile.callback.ProgressCallback;
+import com.invisibi.firefile.transfer.ContentCodec;
+import com.invisibi.firefile.transfer.MultipartUploader;
+import com.invisibi.firefile.transfer.ObjectChangedException;
+import com.invisibi.firefile.transfer.ObjectInfo;
+import com.invisibi.firefile.transfer.S3TransferBackend;
+import com.invisibi.firefile.transfer.SegmentedDownloader;
+import com.invisibi.firefile.transfer.TransferBackend;
+import com.invisibi.firefile.transfer.TransferJournal;
+import com.invisibi.firefile.transfer.UploadIndex;
+import com.invisibi.firefile.util.FireFileIOUtils;
 import com.invisibi.firefile.util.FireFileUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import bolts.Continuation;
 import bolts.Task;
@@ -30,44 +48,231 @@ import bolts.TaskCompletionSource;
  */
 public class FireFileController {
     public static final String DEFAULT_SUB_FOLDER = "file";
-    private TransferUtility transferUtility;
-    private String s3URL;
-    private String s3Bucket;
-    private File cachePath;
+    private static final String LOCAL_KEY_PREFIX = "local:";
+    private static final String SEGMENTS_SUFFIX = ".segments";
+    private static final String REVALIDATE_SUFFIX = ".revalidate";
+    private static final String DECODED_SUFFIX = ".decoded";
+    // Cache path subfolder; DiskCache only scans two-character shard folders.
+    private static final String JOURNAL_FOLDER = "journal";
+    private static final String UPLOAD_INDEX_FOLDER = "uploads";
+    // Unfinished transfers not resumed for this long are given up, and their uploads aborted.
+    private static final long ABANDONED_TRANSFER_MILLIS = TimeUnit.DAYS.toMillis(7);
+    // Callers mark every item that becomes visible; the oldest marks go first.
+    private static final int MAX_PRIORITIZED_KEYS = 256;
+    private final TransferBackend transferBackend;
+    private final String s3URL;
+    private final String s3Bucket;
+    private final File cachePath;
+    private final DiskCache diskCache;
+    private final MemoryCache memoryCache;
+    private final Map<String, InFlightDownload> inFlightDownloads = new HashMap<>();
+    private final boolean progressiveStreams;
+    private final boolean cacheUploadedData;
+    private final MultipartUploader multipartUploader;
+    private final long multipartThreshold;
+    private final SegmentedDownloader segmentedDownloader;
+    private final TransferJournal transferJournal;
+    private final UploadIndex uploadIndex;
+    private final boolean remoteDuplicateCheck;
+    private final boolean compressTransfers;
+    private final int batchSaveConcurrency;
+    private final int prefetchConcurrency;
+    private final ProgressDispatcher progressDispatcher;
+    private final FireFileMetrics metrics;
+    private final AtomicInteger foregroundDownloads = new AtomicInteger();
+    // completed once no foreground download is running; guarded by itself
+    private final List<TaskCompletionSource<Void>> foregroundIdleWaiters = new ArrayList<>();
+    private final Set<String> prioritizedKeys = Collections.synchronizedSet(Collections.newSetFromMap(new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_PRIORITIZED_KEYS;
+        }
+    }));
+    private final Map<String, SparseCacheFile> sparseFiles = new HashMap<>();
+    // cleared once a scan of the cache path finds no legacy entries
+    private volatile boolean mayHaveLegacyFiles = true;
+    private final Map<String, Integer> sparseFileUsers = new HashMap<>();
+    // Per key, the running range downloads by block index; the inner maps are guarded by their
+    // sparse file.
+    private final Map<String, Map<Integer, Task<Void>>> sparseBlockDownloads = new HashMap<>();
 
     public FireFileController(final Context context, final String awsIdentityPoolId, final Regions s3Regions, final String s3URL, final String s3Bucket) {
-        this.s3Bucket = s3Bucket;
+        this(context, awsIdentityPoolId, s3Regions, s3URL, s3Bucket, new FireFileOptions.Builder().build());
+    }
+
+    public FireFileController(final Context context, final String awsIdentityPoolId, final Regions s3Regions, final String s3URL, final String s3Bucket, final FireFileOptions options) {
+        this(new File(context.getCacheDir(), "FFile"), new S3TransferBackend(context, awsIdentityPoolId, s3Regions, s3Bucket), s3URL, s3Bucket, options);
+    }
+
+    public FireFileController(final File cachePath, final TransferBackend transferBackend, final String s3URL, final String s3Bucket) {
+        this(cachePath, transferBackend, s3URL, s3Bucket, new FireFileOptions.Builder().build());
+    }
+
+    public FireFileController(final File cachePath, final TransferBackend transferBackend, final String s3URL, final String s3Bucket, final FireFileOptions options) {
+        this.cachePath = cachePath;
+        this.transferBackend = transferBackend;
         this.s3URL = s3URL;
-        cachePath = new File(context.getCacheDir(), "FFile");
+        this.s3Bucket = s3Bucket;
+        diskCache = new DiskCache(cachePath, options.maxCacheBytes(), options.maxCacheEntries(), options.evictionPolicy(), FireFileExecutors.scheduled());
+        progressiveStreams = options.progressiveStreams();
+        cacheUploadedData = options.cacheUploadedData();
+        transferJournal = options.resumableTransfers() ? new TransferJournal(new File(cachePath, JOURNAL_FOLDER)) : null;
+        multipartUploader = new MultipartUploader(transferBackend, options.multipartPartSize(), options.multipartParallelism(), options.multipartRetries(),
+                transferJournal);
+        multipartThreshold = options.multipartThreshold();
+        uploadIndex = options.contentAddressedUploads() ? new UploadIndex(new File(cachePath, UPLOAD_INDEX_FOLDER)) : null;
+        remoteDuplicateCheck = options.remoteDuplicateCheck();
+        compressTransfers = options.compressTransfers();
+        batchSaveConcurrency = options.batchSaveConcurrency();
+        prefetchConcurrency = options.prefetchConcurrency();
+        metrics = new FireFileMetrics(options.metricsEnabled());
+        progressDispatcher = new ProgressDispatcher(options.progressIntervalMillis(), FireFileExecutors.scheduled(), FireFileExecutors.main());
+        segmentedDownloader = new SegmentedDownloader(transferBackend, options.segmentedDownloadThreshold(), options.downloadSegmentSize(),
+                options.downloadParallelism(), transferJournal);
+        FireFileExecutors.io(FireFileExecutors.Priority.BACKGROUND).execute(new Runnable() {
+            @Override
+            public void run() {
+                mayHaveLegacyFiles = hasLegacyFiles();
+                if (transferJournal != null) {
+                    abortAbandonedTransfers();
+                }
+            }
+        });
+        memoryCache = options.memoryCacheBytes() > 0 ? new MemoryCache(options.memoryCacheBytes(), options.maxMemoryCacheEntryBytes()) : null;
+    }
+
+    private void abortAbandonedTransfers() {
+        for (TransferJournal.Entry entry : transferJournal.removeOlderThan(System.currentTimeMillis() - ABANDONED_TRANSFER_MILLIS)) {
+            if (entry.uploadId() != null) {
+                transferBackend.abortMultipartUpload(entry.objectKey(), entry.uploadId());
+            }
+        }
+    }
 
-        final CognitoCachingCredentialsProvider credentialsProvider = new CognitoCachingCredentialsProvider(context, awsIdentityPoolId, s3Regions);
-        final AmazonS3 s3 = new AmazonS3Client(credentialsProvider);
-        transferUtility = new TransferUtility(s3, context);
+    int getBatchSaveConcurrency() {
+        return batchSaveConcurrency;
+    }
+
+    public FireFileMetrics getMetrics() {
+        return metrics;
+    }
+
+    ProgressDispatcher getProgressDispatcher() {
+        return progressDispatcher;
+    }
+
+    int getPrefetchConcurrency() {
+        return prefetchConcurrency;
+    }
+
+    public TransferBackend getTransferBackend() {
+        return transferBackend;
+    }
+
+    private static TransferBackend.ProgressListener progressListener(final ProgressCallback progressCallback) {
+        if (progressCallback == null) {
+            return null;
+        }
+        return new TransferBackend.ProgressListener() {
+            @Override
+            public void onProgress(final long bytesCurrent, final long bytesTotal) {
+                if (bytesTotal > 0) {
+                    progressCallback.done((int) (((float) bytesCurrent / (float) bytesTotal) * 100));
+                }
+            }
+        };
+    }
+
+    private String getObjectKey(FireFile.State state) {
+        return state.url().replace(s3URL + "/" + s3Bucket + "/", "");
+    }
+
+    /**
+     * Cache key of {@code state}: the digest of its object key, or of its name while it has not
+     * been uploaded yet.
+     */
+    String getCacheKey(FireFile.State state) {
+        if (state.url() == null) {
+            return DiskCache.keyFor(LOCAL_KEY_PREFIX + state.name());
+        }
+        return DiskCache.keyFor(getObjectKey(state));
     }
 
     public File getCacheFile(FireFile.State state) {
-        return new File(cachePath, state.name());
+        return diskCache.getFile(getCacheKey(state));
+    }
+
+    public DiskCache getDiskCache() {
+        return diskCache;
+    }
+
+    /**
+     * @return the in-memory tier, or {@code null} when it is disabled
+     */
+    public MemoryCache getMemoryCache() {
+        return memoryCache;
     }
 
     File getTempFile(FireFile.State state) {
         if (state.url() == null) {
             return null;
         }
-        return new File(cachePath, state.url() + ".tmp");
+        return diskCache.getTempFile(getCacheKey(state));
     }
 
+    /**
+     * Answers from the in-memory cache index once it is loaded, so it is cheap enough for the
+     * main thread.
+     */
     public boolean isDataAvailable(FireFile.State state) {
-        return getCacheFile(state).exists();
+        return diskCache.contains(getCacheKey(state)) || (mayHaveLegacyFiles && getLegacyCacheFile(state).isFile());
     }
 
-    public void clearCache() {
-        File[] files = cachePath.listFiles();
+    /**
+     * Entries written before cache keys were hashed live directly under the cache path, named
+     * after the file.
+     */
+    private File getLegacyCacheFile(FireFile.State state) {
+        return new File(cachePath, state.name());
+    }
+
+    private boolean hasLegacyFiles() {
+        final File[] files = cachePath.listFiles();
         if (files == null) {
-            return;
+            return false;
         }
         for (File file : files) {
-            FireFileUtils.deleteQuietly(file);
+            if (file.isFile() && !file.equals(diskCache.getIndexFile())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private File getCachedFile(FireFile.State state) {
+        final String key = getCacheKey(state);
+        final File cacheFile = diskCache.get(key);
+        if (cacheFile != null) {
+            return cacheFile;
+        }
+        final File legacyFile = getLegacyCacheFile(state);
+        if (!legacyFile.isFile()) {
+            return null;
+        }
+        try {
+            FireFileUtils.moveFile(legacyFile, diskCache.getFile(key));
+        } catch (IOException e) {
+            return null;
+        }
+        diskCache.put(key);
+        return diskCache.get(key);
+    }
+
+    public void clearCache() {
+        if (memoryCache != null) {
+            memoryCache.clear();
         }
+        diskCache.clear();
     }
 
     public Task<FireFile.State> saveAsync(final FireFile.State state, final byte[] data, final ProgressCallback progressCallback, final Task<Void> cancellationToken) {
@@ -77,21 +282,46 @@ public class FireFileController {
         if (cancellationToken != null && cancellationToken.isCancelled()) {
             return Task.cancelled();
         }
-        return Task.forResult(data).onSuccessTask(new Continuation<byte[], Task<File>>() {
+        return uploadTarget(state, new Callable<InputStream>() {
             @Override
-            public Task<File> then(final Task<byte[]> task) throws Exception {
-                final File cacheFile = getCacheFile(state);
-                FireFileUtils.writeByteArrayToFile(cacheFile, data);
-                TaskCompletionSource<File> successful = new TaskCompletionSource<>();
-                successful.setResult(cacheFile);
-                return successful.getTask();
+            public InputStream call() throws Exception {
+                return new ByteArrayInputStream(data);
             }
-        }).onSuccessTask(new Continuation<File, Task<FireFile.State>>() {
+        }, data.length, cancellationToken).onSuccessTask(new Continuation<UploadTarget, Task<FireFile.State>>() {
             @Override
-            public Task<FireFile.State> then(final Task<File> task) throws Exception {
-                return uploadFileToS3(task.getResult(), state, progressCallback).getTask();
+            public Task<FireFile.State> then(Task<UploadTarget> task) throws Exception {
+                final UploadTarget target = task.getResult();
+                final Task<Void> upload;
+                if (target.existing) {
+                    upload = Task.forResult(null);
+                } else {
+                    final byte[] encoded = isCompressed(state) ? ContentCodec.encode(data) : null;
+                    final byte[] payload = encoded != null ? encoded : data;
+                    upload = instrumentUpload(transferBackend.upload(DEFAULT_SUB_FOLDER + File.separator + target.objectId, new ByteArrayInputStream(payload),
+                            payload.length, encoded != null ? ContentCodec.GZIP : null, progressListener(progressCallback), cancellationToken), payload.length);
+                }
+                return upload.onSuccess(new Continuation<Void, FireFile.State>() {
+                    @Override
+                    public FireFile.State then(Task<Void> task) throws Exception {
+                        uploaded(target);
+                        final FireFile.State uploaded = uploadedState(state, target.objectId);
+                        final String uploadedKey = getCacheKey(uploaded);
+                        if (memoryCache != null) {
+                            memoryCache.put(uploadedKey, data);
+                        }
+                        if (cacheUploadedData) {
+                            try {
+                                FireFileUtils.writeByteArrayToFile(diskCache.getFile(uploadedKey), data);
+                                diskCache.put(uploadedKey);
+                            } catch (IOException e) {
+                                // only a cache miss later on
+                            }
+                        }
+                        return uploaded;
+                    }
+                }, FireFileExecutors.io(FireFileExecutors.Priority.SAVE));
             }
-        });
+        }, FireFileExecutors.io(FireFileExecutors.Priority.SAVE));
     }
 
     public Task<FireFile.State> saveAsync(final FireFile.State state, final File file, final ProgressCallback progressCallback, final Task<Void> cancellationToken) {
@@ -105,112 +335,908 @@ public class FireFileController {
         return Task.forResult(state).onSuccessTask(new Continuation<FireFile.State, Task<FireFile.State>>() {
             @Override
             public Task<FireFile.State> then(final Task<FireFile.State> task) throws Exception {
-                return uploadFileToS3(file, state, progressCallback).getTask();
+                return uploadFile(file, state, progressCallback, cancellationToken);
             }
         });
     }
 
-    private TaskCompletionSource uploadFileToS3(final File file, final FireFile.State state, final ProgressCallback progressCallback) {
-        final TaskCompletionSource<FireFile.State> taskCompletionSource = new TaskCompletionSource<>();
+    private Task<FireFile.State> uploadFile(final File file, final FireFile.State state, final ProgressCallback progressCallback, final Task<Void> cancellationToken) {
+        return uploadTarget(state, new Callable<InputStream>() {
+            @Override
+            public InputStream call() throws Exception {
+                return FireFileUtils.openInputStream(file);
+            }
+        }, file.length(), cancellationToken).onSuccessTask(new Continuation<UploadTarget, Task<FireFile.State>>() {
+            @Override
+            public Task<FireFile.State> then(Task<UploadTarget> task) throws Exception {
+                final UploadTarget target = task.getResult();
+                if (target.existing) {
+                    uploaded(target);
+                    return Task.forResult(uploadedState(state, target.objectId));
+                }
+                return uploadFile(file, state, target, progressCallback, cancellationToken);
+            }
+        }, FireFileExecutors.io(FireFileExecutors.Priority.SAVE));
+    }
+
+    private Task<FireFile.State> uploadFile(final File file, final FireFile.State state, final UploadTarget target, final ProgressCallback progressCallback,
+                                            final Task<Void> cancellationToken) {
+        String objectId = target.objectId;
+        final Task<Void> upload;
+        if (multipartThreshold > 0 && file.length() >= multipartThreshold) {
+            // a file that is unchanged since an interrupted save resumes under its earlier key
+            final String journalId = "upload:" + file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+            final String journaledKey = multipartUploader.getJournaledKey(journalId);
+            if (target.digest == null && journaledKey != null && journaledKey.startsWith(DEFAULT_SUB_FOLDER + File.separator)) {
+                objectId = journaledKey.substring(DEFAULT_SUB_FOLDER.length() + File.separator.length());
+            }
+            upload = instrumentUpload(multipartUploader.upload(DEFAULT_SUB_FOLDER + File.separator + objectId, file, journalId,
+                    progressListener(progressCallback), cancellationToken), file.length());
+        } else if (isCompressed(state)) {
+            upload = uploadCompressed(DEFAULT_SUB_FOLDER + File.separator + objectId, file, progressCallback, cancellationToken);
+        } else {
+            final String key = DEFAULT_SUB_FOLDER + File.separator + objectId;
+            upload = instrumentUpload(transferBackend.upload(key, file, progressListener(progressCallback), cancellationToken), file.length());
+        }
+        final String finalObjectId = objectId;
+        return upload.onSuccess(new Continuation<Void, FireFile.State>() {
+            @Override
+            public FireFile.State then(Task<Void> task) throws Exception {
+                uploaded(target);
+                return uploadedState(state, finalObjectId);
+            }
+        });
+    }
+
+    /**
+     * Uploads {@code file} gzipped, from a temporary copy, or as it is when it does not compress.
+     */
+    private Task<Void> uploadCompressed(final String key, final File file, final ProgressCallback progressCallback, final Task<Void> cancellationToken) {
+        final File encodedFile = diskCache.getTempFile(UUID.randomUUID().toString());
+        try {
+            if (!ContentCodec.encode(file, encodedFile)) {
+                return instrumentUpload(transferBackend.upload(key, file, progressListener(progressCallback), cancellationToken), file.length());
+            }
+        } catch (IOException e) {
+            return Task.forError(e);
+        }
+        final InputStream input;
+        try {
+            input = FireFileUtils.openInputStream(encodedFile);
+        } catch (IOException e) {
+            FireFileUtils.deleteQuietly(encodedFile);
+            return Task.forError(e);
+        }
+        final long length = encodedFile.length();
+        return instrumentUpload(transferBackend.upload(key, input, length, ContentCodec.GZIP, progressListener(progressCallback), cancellationToken), length)
+                .continueWithTask(new Continuation<Void, Task<Void>>() {
+                    @Override
+                    public Task<Void> then(Task<Void> task) throws Exception {
+                        FireFileIOUtils.closeQuietly(input);
+                        FireFileUtils.deleteQuietly(encodedFile);
+                        return task;
+                    }
+                });
+    }
+
+    /**
+     * Whether uploads of {@code state} are gzipped. Downloads go by the Content-Encoding the object
+     * was stored with instead, whatever the options of the client that reads it.
+     */
+    private boolean isCompressed(final FireFile.State state) {
+        return compressTransfers && ContentCodec.isCompressible(state.mimeType());
+    }
+
+    /**
+     * Picks the object id for a new upload. With content addressed uploads it is derived from the
+     * digest of {@code content}, and the target tells whether that object exists already, per the
+     * local index or, when enabled, a HEAD request.
+     */
+    private Task<UploadTarget> uploadTarget(final FireFile.State state, final Callable<InputStream> content, final long length,
+                                            final Task<Void> cancellationToken) {
+        if (uploadIndex == null) {
+            return Task.forResult(new UploadTarget(newObjectId(state), null, false));
+        }
+        return Task.call(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                final InputStream input = content.call();
+                try {
+                    return UploadIndex.digest(input, length);
+                } finally {
+                    FireFileIOUtils.closeQuietly(input);
+                }
+            }
+        }, FireFileExecutors.io(FireFileExecutors.Priority.SAVE)).onSuccessTask(new Continuation<String, Task<UploadTarget>>() {
+            @Override
+            public Task<UploadTarget> then(Task<String> task) throws Exception {
+                final String digest = task.getResult();
+                final String indexedId = uploadIndex.get(digest);
+                final String objectId = indexedId != null ? indexedId : contentObjectId(state, digest);
+                if (!remoteDuplicateCheck) {
+                    return Task.forResult(new UploadTarget(objectId, digest, indexedId != null));
+                }
+                return transferBackend.head(DEFAULT_SUB_FOLDER + File.separator + objectId, cancellationToken)
+                        .continueWithTask(new Continuation<ObjectInfo, Task<UploadTarget>>() {
+                            @Override
+                            public Task<UploadTarget> then(Task<ObjectInfo> task) throws Exception {
+                                if (task.isCancelled()) {
+                                    return Task.cancelled();
+                                }
+                                if (task.isFaulted()) {
+                                    if (task.getError() instanceof FileNotFoundException) {
+                                        uploadIndex.remove(digest);
+                                        return Task.forResult(new UploadTarget(contentObjectId(state, digest), digest, false));
+                                    }
+                                    // the backend cannot tell, trust the index
+                                    return Task.forResult(new UploadTarget(objectId, digest, indexedId != null));
+                                }
+                                return Task.forResult(new UploadTarget(objectId, digest, true));
+                            }
+                        });
+            }
+        });
+    }
+
+    private static String contentObjectId(final FireFile.State state, final String digest) {
+        if (!TextUtils.isEmpty(state.mimeType())) {
+            return digest + "." + state.mimeType();
+        }
+        return digest;
+    }
+
+    private void uploaded(final UploadTarget target) {
+        if (target.digest != null) {
+            uploadIndex.put(target.digest, target.objectId);
+        }
+    }
+
+    private static class UploadTarget {
+        private final String objectId;
+        // null unless the upload is content addressed
+        private final String digest;
+        private final boolean existing;
+
+        UploadTarget(String objectId, String digest, boolean existing) {
+            this.objectId = objectId;
+            this.digest = digest;
+            this.existing = existing;
+        }
+    }
+
+    private Task<Void> instrumentUpload(final Task<Void> upload, final long bytes) {
+        if (!metrics.isEnabled()) {
+            return upload;
+        }
+        final long start = metrics.start();
+        metrics.uploadStarted();
+        return upload.continueWithTask(new Continuation<Void, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<Void> task) throws Exception {
+                metrics.uploadFinished();
+                if (task.isFaulted()) {
+                    metrics.recordFailure(FireFileMetrics.Operation.UPLOAD);
+                } else if (!task.isCancelled()) {
+                    metrics.record(FireFileMetrics.Operation.UPLOAD, start);
+                    metrics.addBytesUploaded(bytes);
+                }
+                return task;
+            }
+        });
+    }
+
+    private static String newObjectId(final FireFile.State state) {
         String objectId = UUID.randomUUID() + "-" + state.name();
         if (!TextUtils.isEmpty(state.mimeType())) {
             objectId = objectId.replace(".tmp", "." + state.mimeType());
         }
-        final String finalObjectId = objectId;
-        TransferObserver transferObserver = transferUtility.upload(s3Bucket, DEFAULT_SUB_FOLDER + File.separator + objectId, file, CannedAccessControlList.PublicReadWrite);
-        transferObserver.setTransferListener(new TransferListener() {
+        return objectId;
+    }
+
+    private FireFile.State uploadedState(final FireFile.State state, final String objectId) {
+        final FireFile.State.Builder builder = new FireFile.State.Builder();
+        builder.name(state.name()).mimeType(state.mimeType()).url(s3URL + File.separator + s3Bucket + File.separator + objectId);
+        return builder.build();
+    }
+
+    public Task<File> fetchAsync(final FireFile.State state, final ProgressCallback downloadProgressCallback, final Task<Void> cancellationToken) {
+        if (cancellationToken != null && cancellationToken.isCancelled()) {
+            return Task.cancelled();
+        }
+        return fetchCachedOrJoin(state, downloadProgressCallback, cancellationToken, true);
+    }
+
+    /**
+     * Checks the cached copy of {@code state} against the stored object with a conditional GET
+     * and replaces it when the object has changed, so an unchanged object costs a single round
+     * trip. A copy whose ETag is unknown is downloaded again; a cache miss is fetched as usual.
+     * Revalidation shares the in-flight download of the object with concurrent fetches, joining
+     * one that is already running.
+     *
+     * @return whether new content was downloaded
+     */
+    public Task<Boolean> revalidateAsync(final FireFile.State state, final ProgressCallback downloadProgressCallback, final Task<Void> cancellationToken) {
+        if (cancellationToken != null && cancellationToken.isCancelled()) {
+            return Task.cancelled();
+        }
+        final String key = getCacheKey(state);
+        return Task.call(new Callable<DiskCache.Entry>() {
+            @Override
+            public DiskCache.Entry call() throws Exception {
+                return getCachedFile(state) != null ? diskCache.getEntry(key) : null;
+            }
+        }, FireFileExecutors.io(FireFileExecutors.Priority.FETCH, key)).onSuccessTask(new Continuation<DiskCache.Entry, Task<Boolean>>() {
             @Override
-            public void onStateChanged(final int id, final TransferState transferState) {
-                switch (transferState) {
-                    case COMPLETED:
-                        final FireFile.State.Builder builder = new FireFile.State.Builder();
-                        builder.name(state.name()).mimeType(state.mimeType()).url(s3URL + File.separator + s3Bucket + File.separator + finalObjectId);
-                        taskCompletionSource.trySetResult(builder.build());
-                        break;
-                    case FAILED:
-                        taskCompletionSource.trySetError(new Exception("Upload FFile fail"));
-                        break;
+            public Task<Boolean> then(Task<DiskCache.Entry> task) throws Exception {
+                final DiskCache.Entry entry = task.getResult();
+                if (entry == null) {
+                    return fetchAsync(state, downloadProgressCallback, cancellationToken).onSuccess(new Continuation<File, Boolean>() {
+                        @Override
+                        public Boolean then(Task<File> task) throws Exception {
+                            return true;
+                        }
+                    });
+                }
+                final InFlightDownload download;
+                final Task<File> joined;
+                synchronized (inFlightDownloads) {
+                    final InFlightDownload running = inFlightDownloads.get(key);
+                    if (running != null && !running.cancellationToken().isCompleted()) {
+                        // Whatever is running fetches the current version already.
+                        download = running;
+                    } else {
+                        download = new InFlightDownload(diskCache.getTempFile(key + REVALIDATE_SUFFIX));
+                        inFlightDownloads.put(key, download);
+                    }
+                    joined = download.join(downloadProgressCallback, cancellationToken);
+                }
+                if (download.claimStart()) {
+                    download.start(revalidate(state, entry, download));
+                    forgetWhenDone(key, download);
                 }
+                return joined.onSuccess(new Continuation<File, Boolean>() {
+                    @Override
+                    public Boolean then(Task<File> task) throws Exception {
+                        return !download.isUnchanged();
+                    }
+                });
             }
+        });
+    }
 
+    /**
+     * Runs the conditional GET of a revalidation registered as the in-flight download of
+     * {@code state}, so fetches arriving meanwhile wait for it instead of starting their own.
+     */
+    private Task<File> revalidate(final FireFile.State state, final DiskCache.Entry entry, final InFlightDownload download) {
+        final File revalidateFile = download.getTempFile();
+        final long start = metrics.start();
+        metrics.downloadStarted();
+        return transferBackend.downloadIfModified(getObjectKey(state), revalidateFile, entry.eTag(), download.progressListener(),
+                download.cancellationToken()).continueWith(new Continuation<ObjectInfo, File>() {
             @Override
-            public void onProgressChanged(final int id, final long bytesCurrent, final long bytesTotal) {
-                if (progressCallback != null) {
-                    progressCallback.done((int) (((float) bytesCurrent / (float) bytesTotal) * 100));
+            public File then(Task<ObjectInfo> task) throws Exception {
+                metrics.downloadFinished();
+                if (task.isFaulted() || task.isCancelled() || task.getResult() == null) {
+                    FireFileUtils.deleteQuietly(revalidateFile);
+                    if (task.isFaulted()) {
+                        metrics.recordFailure(FireFileMetrics.Operation.DOWNLOAD);
+                        throw task.getError();
+                    }
+                    if (task.isCancelled()) {
+                        throw new CancellationException();
+                    }
+                    download.markUnchanged();
+                    return getCacheFile(state);
                 }
+                metrics.record(FireFileMetrics.Operation.DOWNLOAD, start);
+                final File cacheFile = store(state, revalidateFile, task.getResult());
+                if (memoryCache != null) {
+                    memoryCache.remove(getCacheKey(state));
+                }
+                return cacheFile;
             }
+        }, FireFileExecutors.io(FireFileExecutors.Priority.FETCH));
+    }
 
+    /**
+     * Downloads {@code state} into the cache unless it is there already. Waits while foreground
+     * downloads are running so that prefetching never competes with them for bandwidth.
+     */
+    Task<Void> prefetchAsync(final FireFile.State state, final Task<Void> cancellationToken) {
+        if (state.url() == null) {
+            return Task.forResult(null);
+        }
+        return Task.call(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return isDataAvailable(state);
+            }
+        }, FireFileExecutors.io(FireFileExecutors.Priority.BACKGROUND, getCacheKey(state))).onSuccessTask(new Continuation<Boolean, Task<Void>>() {
             @Override
-            public void onError(final int id, final Exception ex) {
-                taskCompletionSource.trySetError(ex);
+            public Task<Void> then(Task<Boolean> task) throws Exception {
+                if (task.getResult()) {
+                    return Task.forResult(null);
+                }
+                return whenForegroundIdle(state, cancellationToken).onSuccessTask(new Continuation<Void, Task<Void>>() {
+                    @Override
+                    public Task<Void> then(Task<Void> task) throws Exception {
+                        return fetchCachedOrJoin(state, null, cancellationToken, false).makeVoid();
+                    }
+                });
+            }
+        }).continueWithTask(new Continuation<Void, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<Void> task) throws Exception {
+                prioritizedKeys.remove(getCacheKey(state));
+                return task;
             }
         });
-        return taskCompletionSource;
     }
 
-    public Task<File> fetchAsync(final FireFile.State state, final ProgressCallback downloadProgressCallback, final Task<Void> cancellationToken) {
+    /**
+     * @param foreground whether prefetches should hold back while the download is running
+     */
+    private Task<File> fetchCachedOrJoin(final FireFile.State state, final ProgressCallback downloadProgressCallback,
+                                         final Task<Void> cancellationToken, final boolean foreground) {
+        final FireFileExecutors.Priority priority = foreground ? FireFileExecutors.Priority.FETCH : FireFileExecutors.Priority.BACKGROUND;
+        return Task.call(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                final long start = metrics.start();
+                final File cachedFile = getCachedFile(state);
+                metrics.record(FireFileMetrics.Operation.CACHE_PROBE, start);
+                metrics.recordCacheProbe(cachedFile != null);
+                return cachedFile;
+            }
+        }, FireFileExecutors.io(priority, getCacheKey(state))).onSuccessTask(new Continuation<File, Task<File>>() {
+            @Override
+            public Task<File> then(Task<File> task) throws Exception {
+                if (task.getResult() != null) {
+                    return Task.forResult(task.getResult());
+                }
+                if (cancellationToken != null && cancellationToken.isCancelled()) {
+                    return Task.cancelled();
+                }
+                final Task<File> download = joinDownload(state, downloadProgressCallback, cancellationToken);
+                return foreground ? trackForeground(download) : download;
+            }
+        }).continueWithTask(new Continuation<File, Task<File>>() {
+            @Override
+            public Task<File> then(Task<File> task) throws Exception {
+                if (foreground) {
+                    // the mark only matters to a prefetch that has not fetched the file yet
+                    prioritizedKeys.remove(getCacheKey(state));
+                }
+                return task;
+            }
+        });
+    }
+
+    private Task<Void> whenForegroundIdle(final FireFile.State state, final Task<Void> cancellationToken) {
         if (cancellationToken != null && cancellationToken.isCancelled()) {
             return Task.cancelled();
         }
+        if (isPrioritized(state)) {
+            return Task.forResult(null);
+        }
+        final TaskCompletionSource<Void> waiter = new TaskCompletionSource<>();
+        synchronized (foregroundIdleWaiters) {
+            if (foregroundDownloads.get() == 0) {
+                return Task.forResult(null);
+            }
+            foregroundIdleWaiters.add(waiter);
+        }
+        if (cancellationToken != null) {
+            cancellationToken.continueWith(new Continuation<Void, Void>() {
+                @Override
+                public Void then(Task<Void> task) throws Exception {
+                    if (task.isCancelled()) {
+                        waiter.trySetResult(null);
+                    }
+                    return null;
+                }
+            });
+        }
+        // woken by the last foreground download, a prioritize() or cancellation; check again as
+        // another foreground download may have started meanwhile
+        return waiter.getTask().continueWithTask(new Continuation<Void, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<Void> task) throws Exception {
+                return whenForegroundIdle(state, cancellationToken);
+            }
+        });
+    }
+
+    private void wakeForegroundIdleWaiters() {
+        final List<TaskCompletionSource<Void>> waiters;
+        synchronized (foregroundIdleWaiters) {
+            waiters = new ArrayList<>(foregroundIdleWaiters);
+            foregroundIdleWaiters.clear();
+        }
+        for (TaskCompletionSource<Void> waiter : waiters) {
+            waiter.trySetResult(null);
+        }
+    }
+
+    /**
+     * Marks {@code state} as needed now, e.g. because it became visible: its queued I/O moves up
+     * to {@link FireFileExecutors.Priority#FETCH} and a pending prefetch of it stops holding back.
+     */
+    void prioritize(final FireFile.State state) {
+        if (state.url() == null) {
+            return;
+        }
+        final String key = getCacheKey(state);
+        prioritizedKeys.add(key);
+        FireFileExecutors.prioritize(key, FireFileExecutors.Priority.FETCH);
+        wakeForegroundIdleWaiters();
+    }
+
+    boolean isPrioritized(final FireFile.State state) {
+        return state.url() != null && prioritizedKeys.contains(getCacheKey(state));
+    }
+
+    private <T> Task<T> trackForeground(final Task<T> task) {
+        foregroundDownloads.incrementAndGet();
+        task.continueWith(new Continuation<T, Void>() {
+            @Override
+            public Void then(Task<T> ignored) throws Exception {
+                if (foregroundDownloads.decrementAndGet() == 0) {
+                    wakeForegroundIdleWaiters();
+                }
+                return null;
+            }
+        });
+        return task;
+    }
+
+    /**
+     * Joins the in-flight download of {@code state}, starting one if none is running, so
+     * concurrent fetches of one object share a single transfer.
+     */
+    private Task<File> joinDownload(final FireFile.State state, final ProgressCallback downloadProgressCallback, final Task<Void> cancellationToken) {
+        final InFlightDownload download;
+        final Task<File> task;
+        synchronized (inFlightDownloads) {
+            download = obtainDownload(state);
+            task = download.join(downloadProgressCallback, cancellationToken);
+        }
+        startDownload(state, download);
+        return task;
+    }
+
+    private InFlightDownload obtainDownload(final FireFile.State state) {
+        final String key = getCacheKey(state);
+        InFlightDownload download = inFlightDownloads.get(key);
+        if (download == null || download.cancellationToken().isCompleted()) {
+            download = new InFlightDownload(getTempFile(state));
+            inFlightDownloads.put(key, download);
+        }
+        return download;
+    }
+
+    private void startDownload(final FireFile.State state, final InFlightDownload download) {
+        if (!download.claimStart()) {
+            return;
+        }
+        download.start(download(state, new TransferBackend.ObjectInfoListener() {
+            @Override
+            public void onObjectInfo(ObjectInfo info) {
+                // encoded bytes are only readable once decoded into the cache file
+                if (info.contentEncoding() == null) {
+                    download.markTempFileReady();
+                }
+            }
+        }, download.progressListener(), download.cancellationToken()));
+        forgetWhenDone(getCacheKey(state), download);
+    }
+
+    private void forgetWhenDone(final String key, final InFlightDownload download) {
+        download.getTask().continueWith(new Continuation<File, Void>() {
+            @Override
+            public Void then(Task<File> ignored) throws Exception {
+                synchronized (inFlightDownloads) {
+                    if (inFlightDownloads.get(key) == download) {
+                        inFlightDownloads.remove(key);
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @param tempFileReady called with the metadata of the object once the temp file holds its
+     *                      bytes in order, and may be read while the download goes on
+     */
+    private Task<File> download(final FireFile.State state, final TransferBackend.ObjectInfoListener tempFileReady,
+                                final TransferBackend.ProgressListener progressListener, final Task<Void> cancellationToken) {
+        final File tempFile = getTempFile(state);
+        final long start = metrics.start();
+        metrics.downloadStarted();
+        final File stagingFile = diskCache.getTempFile(getCacheKey(state) + SEGMENTS_SUFFIX);
+        return segmentedDownloader.download(getObjectKey(state), tempFile, stagingFile, tempFileReady, progressListener, cancellationToken).continueWithTask(new Continuation<ObjectInfo, Task<File>>() {
+            @Override
+            public Task<File> then(Task<ObjectInfo> task) throws Exception {
+                metrics.downloadFinished();
+                if (task.isFaulted() || task.isCancelled()) {
+                    if (task.isFaulted()) {
+                        metrics.recordFailure(FireFileMetrics.Operation.DOWNLOAD);
+                    }
+                    if (transferJournal == null) {
+                        FireFileUtils.deleteQuietly(tempFile);
+                    }
+                    return task.cast();
+                }
+                metrics.record(FireFileMetrics.Operation.DOWNLOAD, start);
+                try {
+                    return Task.forResult(store(state, tempFile, task.getResult()));
+                } catch (IOException e) {
+                    return Task.forError(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves a finished download of {@code state} into the cache, decoding it on the way when it
+     * was stored gzipped.
+     *
+     * @param info the metadata of the downloaded object
+     */
+    private File store(final FireFile.State state, final File downloaded, final ObjectInfo info) throws IOException {
         final File cacheFile = getCacheFile(state);
+        final long moveStart = metrics.start();
+        final long transferred = downloaded.length();
+        try {
+            File source = downloaded;
+            if (ContentCodec.GZIP.equals(info.contentEncoding())) {
+                final File decoded = diskCache.getTempFile(getCacheKey(state) + DECODED_SUFFIX);
+                ContentCodec.decode(downloaded, decoded);
+                FireFileUtils.deleteQuietly(downloaded);
+                source = decoded;
+            }
+            // Renaming over the old copy swaps it in one step: readers that have it open keep the
+            // old content and nobody sees the file missing in between.
+            if (!source.renameTo(cacheFile)) {
+                FireFileUtils.deleteQuietly(cacheFile);
+                FireFileUtils.moveFile(source, cacheFile);
+            }
+            diskCache.put(getCacheKey(state), info.eTag(), info.lastModified());
+        } catch (IOException e) {
+            metrics.recordFailure(FireFileMetrics.Operation.CACHE_MOVE);
+            throw e;
+        }
+        metrics.record(FireFileMetrics.Operation.CACHE_MOVE, moveStart);
+        metrics.addBytesDownloaded(transferred);
+        return cacheFile;
+    }
 
-        return Task.call(new Callable<Boolean>() {
+    /**
+     * Like {@link #fetchAsync} but returns the content, served from the memory tier when possible.
+     */
+    public Task<byte[]> fetchDataAsync(final FireFile.State state, final ProgressCallback downloadProgressCallback, final Task<Void> cancellationToken) {
+        if (memoryCache != null && state.url() != null) {
+            final byte[] data = memoryCache.get(getCacheKey(state));
+            if (data != null) {
+                metrics.recordMemoryCacheHit();
+                return Task.forResult(data);
+            }
+        }
+        return fetchAsync(state, downloadProgressCallback, cancellationToken).onSuccess(new Continuation<File, byte[]>() {
             @Override
-            public Boolean call() throws Exception {
-                return cacheFile.exists();
+            public byte[] then(Task<File> task) throws Exception {
+                try {
+                    final long start = metrics.start();
+                    final byte[] data = FireFileUtils.readFileToByteArray(task.getResult());
+                    metrics.record(FireFileMetrics.Operation.READ, start);
+                    if (memoryCache != null) {
+                        memoryCache.put(getCacheKey(state), data);
+                    }
+                    return data;
+                } catch (IOException e) {
+                    metrics.recordFailure(FireFileMetrics.Operation.READ);
+                }
+                return null;
             }
-        }, FireFileExecutors.io()).continueWithTask(new Continuation<Boolean, Task<File>>() {
+        });
+    }
+
+    /**
+     * Opens the content of {@code state}. With progressive streams enabled a cache miss returns
+     * as soon as the download starts and the stream yields bytes as they arrive; otherwise the
+     * stream is opened on the cache file once the download has finished.
+     */
+    public Task<InputStream> fetchStreamAsync(final FireFile.State state, final ProgressCallback downloadProgressCallback, final Task<Void> cancellationToken) {
+        if (!progressiveStreams) {
+            return fetchAsync(state, downloadProgressCallback, cancellationToken).onSuccess(new Continuation<File, InputStream>() {
+                @Override
+                public InputStream then(Task<File> task) throws Exception {
+                    return new FileInputStream(task.getResult());
+                }
+            });
+        }
+        if (cancellationToken != null && cancellationToken.isCancelled()) {
+            return Task.cancelled();
+        }
+
+        return Task.call(new Callable<File>() {
             @Override
-            public Task<File> then(Task<Boolean> task) throws Exception {
-                boolean result = task.getResult();
-                if (result) {
-                    return Task.forResult(cacheFile);
+            public File call() throws Exception {
+                return getCachedFile(state);
+            }
+        }, FireFileExecutors.io(FireFileExecutors.Priority.FETCH, getCacheKey(state))).onSuccessTask(new Continuation<File, Task<InputStream>>() {
+            @Override
+            public Task<InputStream> then(Task<File> task) throws Exception {
+                if (task.getResult() != null) {
+                    return Task.<InputStream>forResult(new FileInputStream(task.getResult()));
                 }
                 if (cancellationToken != null && cancellationToken.isCancelled()) {
                     return Task.cancelled();
                 }
 
-                final TaskCompletionSource<File> taskCompletionSource = new TaskCompletionSource<>();
+                final InFlightDownload download;
+                final Task<File> downloadTask;
+                synchronized (inFlightDownloads) {
+                    download = obtainDownload(state);
+                    downloadTask = download.join(downloadProgressCallback, cancellationToken);
+                }
+                startDownload(state, download);
+                trackForeground(downloadTask);
+                return Task.<InputStream>forResult(new ProgressiveInputStream(download, downloadTask));
+            }
+        });
+    }
 
-                final File tempFile = getTempFile(state);
-                final String objectId = state.url().replace(s3URL + "/" + s3Bucket + "/", "");
-                TransferObserver observer = transferUtility.download(s3Bucket, objectId, tempFile);
-                observer.setTransferListener(new TransferListener() {
+    /**
+     * Reads {@code length} bytes at {@code offset}, or fewer at the end of the object. Without a
+     * complete cache file only the missing blocks of the range are downloaded, into a sparse
+     * cache file that is promoted to a regular cache entry once every block is present.
+     */
+    public Task<byte[]> fetchRangeAsync(final FireFile.State state, final long offset, final int length, final Task<Void> cancellationToken) {
+        if (cancellationToken != null && cancellationToken.isCancelled()) {
+            return Task.cancelled();
+        }
+
+        return Task.call(new Callable<File>() {
+            @Override
+            public File call() throws Exception {
+                return getCachedFile(state);
+            }
+        }, FireFileExecutors.io(FireFileExecutors.Priority.FETCH, getCacheKey(state))).onSuccessTask(new Continuation<File, Task<byte[]>>() {
+            @Override
+            public Task<byte[]> then(Task<File> task) throws Exception {
+                if (task.getResult() != null) {
+                    return Task.forResult(FireFileUtils.readFileRange(task.getResult(), offset, length));
+                }
+                if (cancellationToken != null && cancellationToken.isCancelled()) {
+                    return Task.cancelled();
+                }
+                final String key = getCacheKey(state);
+                final SparseCacheFile sparseFile = acquireSparseFile(key);
+                final Map<Integer, Task<Void>> blockDownloads;
+                synchronized (sparseFiles) {
+                    blockDownloads = sparseBlockDownloads.get(key);
+                }
+                return fillSparseFile(state, sparseFile, blockDownloads, offset, length, cancellationToken).continueWithTask(new Continuation<Boolean, Task<Boolean>>() {
                     @Override
-                    public void onStateChanged(final int id, final TransferState state) {
-                        switch (state) {
-                            case COMPLETED:
-                                try {
-                                    FireFileUtils.deleteQuietly(cacheFile);
-                                    FireFileUtils.moveFile(tempFile, cacheFile);
-                                    taskCompletionSource.setResult(cacheFile);
-                                } catch (IOException e) {
-                                    taskCompletionSource.setError(e);
+                    public Task<Boolean> then(Task<Boolean> task) throws Exception {
+                        if (!(task.getError() instanceof ObjectChangedException)) {
+                            return task;
+                        }
+                        // the blocks so far belong to an older version of the object
+                        synchronized (sparseFile) {
+                            sparseFile.delete();
+                            blockDownloads.clear();
+                        }
+                        return fillSparseFile(state, sparseFile, blockDownloads, offset, length, cancellationToken);
+                    }
+                }).onSuccessTask(new Continuation<Boolean, Task<byte[]>>() {
+                    @Override
+                    public Task<byte[]> then(Task<Boolean> task) throws Exception {
+                        if (!task.getResult()) {
+                            // ranges of the stored object are ranges of the encoded bytes
+                            return fetchAsync(state, null, cancellationToken).onSuccess(new Continuation<File, byte[]>() {
+                                @Override
+                                public byte[] then(Task<File> task) throws Exception {
+                                    return FireFileUtils.readFileRange(task.getResult(), offset, length);
                                 }
-                                break;
-                            case FAILED:
-                                FireFileUtils.deleteQuietly(tempFile);
-                                taskCompletionSource.setError(new Exception("Download FFile fail"));
-                                break;
+                            });
                         }
+                        final long end = Math.min(offset + length, sparseFile.length());
+                        return Task.forResult(offset < end ? sparseFile.read(offset, (int) (end - offset)) : new byte[0]);
+                    }
+                }).continueWithTask(new Continuation<byte[], Task<byte[]>>() {
+                    @Override
+                    public Task<byte[]> then(Task<byte[]> task) throws Exception {
+                        releaseSparseFile(key);
+                        return task;
                     }
+                });
+            }
+        });
+    }
 
+    /**
+     * Downloads the blocks of {@code [offset, offset + length)} that {@code sparseFile} lacks.
+     * Blocks another caller is downloading already are waited for instead, and taken over if
+     * that download fails. Fails with an {@link ObjectChangedException} once the object no longer
+     * matches the ETag the sparse file was recorded for.
+     */
+    /**
+     * @return whether the range could be filled; not when the object is stored content-encoded, see
+     * {@link #loadSparseFile}
+     */
+    private Task<Boolean> fillSparseFile(final FireFile.State state, final SparseCacheFile sparseFile, final Map<Integer, Task<Void>> blockDownloads,
+                                         final long offset, final int length, final Task<Void> cancellationToken) {
+        return loadSparseFile(state, sparseFile, cancellationToken).onSuccessTask(new Continuation<Boolean, Task<Boolean>>() {
+            @Override
+            public Task<Boolean> then(Task<Boolean> task) throws Exception {
+                if (!task.getResult()) {
+                    return Task.forResult(false);
+                }
+                final List<Task<Void>> own = new ArrayList<>();
+                final List<Task<Void>> all = new ArrayList<>();
+                synchronized (sparseFile) {
+                    for (final long[] range : sparseFile.missingRanges(offset, length)) {
+                        final int endBlock = (int) ((range[0] + range[1] + SparseCacheFile.BLOCK_SIZE - 1) / SparseCacheFile.BLOCK_SIZE);
+                        int block = (int) (range[0] / SparseCacheFile.BLOCK_SIZE);
+                        while (block < endBlock) {
+                            final Task<Void> running = blockDownloads.get(block);
+                            if (running != null) {
+                                if (!all.contains(running)) {
+                                    all.add(running);
+                                }
+                                block++;
+                                continue;
+                            }
+                            int runEnd = block + 1;
+                            while (runEnd < endBlock && !blockDownloads.containsKey(runEnd)) {
+                                runEnd++;
+                            }
+                            final Task<Void> download = downloadBlocks(state, sparseFile, blockDownloads, block, runEnd, cancellationToken);
+                            own.add(download);
+                            all.add(download);
+                            block = runEnd;
+                        }
+                    }
+                }
+                if (all.isEmpty()) {
+                    return Task.forResult(true);
+                }
+                return Task.whenAll(all).continueWithTask(new Continuation<Void, Task<Boolean>>() {
                     @Override
-                    public void onProgressChanged(final int id, final long bytesCurrent, final long bytesTotal) {
-                        if (downloadProgressCallback != null) {
-                            downloadProgressCallback.done((int) (((float) bytesCurrent / (float) bytesTotal) * 100));
+                    public Task<Boolean> then(Task<Void> ignored) throws Exception {
+                        for (Task<Void> download : own) {
+                            if (download.isFaulted() || download.isCancelled()) {
+                                return download.cast();
+                            }
+                        }
+                        if (cancellationToken != null && cancellationToken.isCancelled()) {
+                            return Task.cancelled();
                         }
+                        if (own.size() == all.size()) {
+                            return Task.forResult(true);
+                        }
+                        // blocks of a download that failed for another caller are still missing
+                        return fillSparseFile(state, sparseFile, blockDownloads, offset, length, cancellationToken);
                     }
+                });
+            }
+        });
+    }
 
+    /**
+     * Downloads the blocks {@code [block, endBlock)}, registered in {@code blockDownloads} while
+     * running. Guarded by {@code sparseFile}.
+     */
+    private Task<Void> downloadBlocks(final FireFile.State state, final SparseCacheFile sparseFile, final Map<Integer, Task<Void>> blockDownloads,
+                                      final int block, final int endBlock, final Task<Void> cancellationToken) throws IOException {
+        final long start = (long) block * SparseCacheFile.BLOCK_SIZE;
+        final long length = Math.min((long) endBlock * SparseCacheFile.BLOCK_SIZE, sparseFile.length()) - start;
+        final String eTag = sparseFile.eTag();
+        final Task<Void> download = transferBackend.downloadRange(getObjectKey(state), start, length, eTag, sparseFile.channel(), null, cancellationToken)
+                .onSuccess(new Continuation<Void, Void>() {
                     @Override
-                    public void onError(final int id, final Exception ex) {
-                        Log.d(FireFileController.class.getSimpleName(), "error:" + ex.getLocalizedMessage());
-                        FireFileUtils.deleteQuietly(tempFile);
+                    public Void then(Task<Void> task) throws Exception {
+                        synchronized (sparseFile) {
+                            // skipped when the sparse file was reset for a newer version meanwhile
+                            if (eTag == null ? sparseFile.eTag() == null : eTag.equals(sparseFile.eTag())) {
+                                sparseFile.markAvailable(start, length);
+                            }
+                        }
+                        return null;
                     }
                 });
-
-                return taskCompletionSource.getTask();
+        for (int i = block; i < endBlock; i++) {
+            blockDownloads.put(i, download);
+        }
+        download.continueWith(new Continuation<Void, Void>() {
+            @Override
+            public Void then(Task<Void> task) throws Exception {
+                synchronized (sparseFile) {
+                    for (int i = block; i < endBlock; i++) {
+                        if (blockDownloads.get(i) == download) {
+                            blockDownloads.remove(i);
+                        }
+                    }
+                }
+                return null;
             }
         });
+        return download;
+    }
+
+    /**
+     * @return whether ranges of the object can be read from {@code sparseFile}; not when the object
+     * is stored content-encoded, as its ranges are ranges of the encoded bytes
+     */
+    private Task<Boolean> loadSparseFile(final FireFile.State state, final SparseCacheFile sparseFile, final Task<Void> cancellationToken) {
+        synchronized (sparseFile) {
+            if (sparseFile.load()) {
+                return Task.forResult(true);
+            }
+        }
+        return transferBackend.head(getObjectKey(state), cancellationToken).onSuccess(new Continuation<ObjectInfo, Boolean>() {
+            @Override
+            public Boolean then(Task<ObjectInfo> task) throws Exception {
+                final ObjectInfo info = task.getResult();
+                if (info.contentEncoding() != null) {
+                    return false;
+                }
+                synchronized (sparseFile) {
+                    if (!sparseFile.load()) {
+                        sparseFile.reset(info.length(), info.eTag());
+                    }
+                }
+                return true;
+            }
+        }, FireFileExecutors.io());
+    }
+
+    private SparseCacheFile acquireSparseFile(final String key) {
+        synchronized (sparseFiles) {
+            SparseCacheFile sparseFile = sparseFiles.get(key);
+            if (sparseFile == null) {
+                final File cacheFile = diskCache.getFile(key);
+                sparseFile = new SparseCacheFile(
+                        new File(cacheFile.getParentFile(), cacheFile.getName() + SparseCacheFile.DATA_SUFFIX),
+                        new File(cacheFile.getParentFile(), cacheFile.getName() + SparseCacheFile.MAP_SUFFIX));
+                sparseFiles.put(key, sparseFile);
+                sparseFileUsers.put(key, 0);
+                sparseBlockDownloads.put(key, new HashMap<Integer, Task<Void>>());
+            }
+            sparseFileUsers.put(key, sparseFileUsers.get(key) + 1);
+            return sparseFile;
+        }
+    }
+
+    private void releaseSparseFile(final String key) {
+        final SparseCacheFile sparseFile;
+        synchronized (sparseFiles) {
+            final int users = sparseFileUsers.get(key) - 1;
+            if (users > 0) {
+                sparseFileUsers.put(key, users);
+                return;
+            }
+            sparseFileUsers.remove(key);
+            sparseBlockDownloads.remove(key);
+            sparseFile = sparseFiles.remove(key);
+            sparseFile.close();
+            if (!sparseFile.isComplete()) {
+                return;
+            }
+            try {
+                final File cacheFile = diskCache.getFile(key);
+                FireFileUtils.deleteQuietly(cacheFile);
+                FireFileUtils.moveFile(sparseFile.getDataFile(), cacheFile);
+                diskCache.put(key, sparseFile.eTag(), 0);
+            } catch (IOException e) {
+                // keep reading ranges from the sparse file
+                return;
+            }
+        }
+        sparseFile.delete();
     }
 }
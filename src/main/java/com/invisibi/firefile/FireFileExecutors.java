@@ -9,8 +9,33 @@ import bolts.Task;
  * Created by Tiny on 4/27/16.
  */
 public class FireFileExecutors {
+    /**
+     * Priority classes of the I/O executor, most urgent first.
+     */
+    public enum Priority {
+        /**
+         * Work a user is waiting for, e.g. a fetch of a visible file.
+         */
+        FETCH,
+        SAVE,
+        /**
+         * Prefetches and other speculative work.
+         */
+        BACKGROUND
+    }
+
+    private static final int IO_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors() * 2);
+    // Enough for a segmented download and a multipart upload at their default parallelism.
+    private static final int NETWORK_THREADS = 8;
+    // A queued task overtakes fresh work one class above it after waiting this long.
+    private static final long IO_AGING_MILLIS = 2000;
+
     private static ScheduledExecutorService scheduledExecutor;
     private static final Object SCHEDULED_EXECUTOR_LOCK = new Object();
+    private static PriorityExecutor ioExecutor;
+    private static final Object IO_EXECUTOR_LOCK = new Object();
+    private static PriorityExecutor networkExecutor;
+    private static final Object NETWORK_EXECUTOR_LOCK = new Object();
 
     static ScheduledExecutorService scheduled() {
         synchronized (SCHEDULED_EXECUTOR_LOCK) {
@@ -25,7 +50,56 @@ public class FireFileExecutors {
         return Task.UI_THREAD_EXECUTOR;
     }
 
+    private static PriorityExecutor ioExecutor() {
+        synchronized (IO_EXECUTOR_LOCK) {
+            if (ioExecutor == null) {
+                ioExecutor = new PriorityExecutor("FireFile-io", IO_THREADS, IO_AGING_MILLIS);
+            }
+            return ioExecutor;
+        }
+    }
+
+    private static PriorityExecutor networkExecutor() {
+        synchronized (NETWORK_EXECUTOR_LOCK) {
+            if (networkExecutor == null) {
+                networkExecutor = new PriorityExecutor("FireFile-network", NETWORK_THREADS, IO_AGING_MILLIS);
+            }
+            return networkExecutor;
+        }
+    }
+
+    /**
+     * Bounded I/O executor at {@link Priority#FETCH}, separate from the executors other Bolts
+     * users share.
+     */
     public static Executor io() {
-        return Task.BACKGROUND_EXECUTOR;
+        return io(Priority.FETCH);
+    }
+
+    public static Executor io(Priority priority) {
+        return io(priority, null);
+    }
+
+    /**
+     * @param tag identifies the work for {@link #prioritize(Object, Priority)}, e.g. a cache key
+     */
+    public static Executor io(Priority priority, Object tag) {
+        return ioExecutor().executor(priority, tag);
+    }
+
+    /**
+     * Moves queued I/O work tagged {@code tag} up to {@code priority}.
+     */
+    public static void prioritize(Object tag, Priority priority) {
+        ioExecutor().prioritize(tag, priority);
+    }
+
+    /**
+     * Bounded executor for calls that block on the network, e.g. a request of a
+     * {@link com.invisibi.firefile.transfer.TransferBackend}. Separate from {@link #io} so that
+     * transfers, however many parts they run in parallel, never hold up cache lookups.
+     */
+    public static Executor network(Priority priority) {
+        return networkExecutor().executor(priority, null);
     }
 }
@@ -0,0 +1,220 @@
+package com.invisibi.firefile;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of FireFile operations, enabled with
+ * {@link FireFileOptions.Builder#metricsEnabled(boolean)} and read through
+ * {@link FireFile#getMetrics()}. Recording only touches preallocated atomics; when disabled every
+ * call returns after a single field check and no clock is read.
+ */
+public class FireFileMetrics {
+    public enum Operation {
+        /**
+         * Time a FireFile call waited for earlier calls on the same file.
+         */
+        QUEUE_WAIT,
+        CACHE_PROBE,
+        DOWNLOAD,
+        UPLOAD,
+        /**
+         * Moving a finished download into the cache.
+         */
+        CACHE_MOVE,
+        /**
+         * Reading a cached file into memory for {@code getData}.
+         */
+        READ
+    }
+
+    // Bucket i holds latencies in [2^i, 2^(i+1)) microseconds, the last one everything above.
+    private static final int BUCKETS = 32;
+    private static final int OPERATIONS = Operation.values().length;
+
+    private final boolean enabled;
+    private final AtomicLongArray histograms = new AtomicLongArray(OPERATIONS * BUCKETS);
+    private final AtomicLongArray totalNanos = new AtomicLongArray(OPERATIONS);
+    private final AtomicLongArray failures = new AtomicLongArray(OPERATIONS);
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+    private final AtomicLong bytesUploaded = new AtomicLong();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong memoryCacheHits = new AtomicLong();
+    private final AtomicInteger downloadsInFlight = new AtomicInteger();
+    private final AtomicInteger uploadsInFlight = new AtomicInteger();
+
+    FireFileMetrics(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return a start time for {@link #record}, or 0 when disabled
+     */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    void record(Operation operation, long startNanos) {
+        if (!enabled) {
+            return;
+        }
+        final long nanos = System.nanoTime() - startNanos;
+        final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        final int bucket = micros <= 0 ? 0 : Math.min(BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        histograms.incrementAndGet(operation.ordinal() * BUCKETS + bucket);
+        totalNanos.addAndGet(operation.ordinal(), nanos);
+    }
+
+    void recordFailure(Operation operation) {
+        if (enabled) {
+            failures.incrementAndGet(operation.ordinal());
+        }
+    }
+
+    void recordCacheProbe(boolean hit) {
+        if (enabled) {
+            (hit ? cacheHits : cacheMisses).incrementAndGet();
+        }
+    }
+
+    void recordMemoryCacheHit() {
+        if (enabled) {
+            memoryCacheHits.incrementAndGet();
+        }
+    }
+
+    void addBytesDownloaded(long bytes) {
+        if (enabled) {
+            bytesDownloaded.addAndGet(bytes);
+        }
+    }
+
+    void addBytesUploaded(long bytes) {
+        if (enabled) {
+            bytesUploaded.addAndGet(bytes);
+        }
+    }
+
+    void downloadStarted() {
+        if (enabled) {
+            downloadsInFlight.incrementAndGet();
+        }
+    }
+
+    void downloadFinished() {
+        if (enabled) {
+            downloadsInFlight.decrementAndGet();
+        }
+    }
+
+    void uploadStarted() {
+        if (enabled) {
+            uploadsInFlight.incrementAndGet();
+        }
+    }
+
+    void uploadFinished() {
+        if (enabled) {
+            uploadsInFlight.decrementAndGet();
+        }
+    }
+
+    public long getCount(Operation operation) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += histograms.get(operation.ordinal() * BUCKETS + i);
+        }
+        return count;
+    }
+
+    public long getTotalNanos(Operation operation) {
+        return totalNanos.get(operation.ordinal());
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return an upper bound of the given latency percentile, accurate to a factor of two, or 0
+     * when nothing was recorded
+     */
+    public long getPercentileNanos(Operation operation, double percentile) {
+        final long count = getCount(operation);
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histograms.get(operation.ordinal() * BUCKETS + i);
+            if (seen >= rank) {
+                return TimeUnit.MICROSECONDS.toNanos(1L << (i + 1));
+            }
+        }
+        return TimeUnit.MICROSECONDS.toNanos(1L << BUCKETS);
+    }
+
+    public long getFailures(Operation operation) {
+        return failures.get(operation.ordinal());
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    public long getBytesUploaded() {
+        return bytesUploaded.get();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    public long getMemoryCacheHits() {
+        return memoryCacheHits.get();
+    }
+
+    /**
+     * @return disk cache hits over all disk cache probes, or 0 before the first probe
+     */
+    public double getCacheHitRatio() {
+        final long hits = cacheHits.get();
+        final long total = hits + cacheMisses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    public int getDownloadsInFlight() {
+        return downloadsInFlight.get();
+    }
+
+    public int getUploadsInFlight() {
+        return uploadsInFlight.get();
+    }
+
+    /**
+     * Clears all counters and histograms; in-flight gauges are kept.
+     */
+    public void reset() {
+        for (int i = 0; i < histograms.length(); i++) {
+            histograms.set(i, 0);
+        }
+        for (int i = 0; i < OPERATIONS; i++) {
+            totalNanos.set(i, 0);
+            failures.set(i, 0);
+        }
+        bytesDownloaded.set(0);
+        bytesUploaded.set(0);
+        cacheHits.set(0);
+        cacheMisses.set(0);
+        memoryCacheHits.set(0);
+    }
+}
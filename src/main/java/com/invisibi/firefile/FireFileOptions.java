@@ -0,0 +1,385 @@
+package com.invisibi.firefile;
+
+import com.invisibi.firefile.cache.EvictionPolicy;
+import com.invisibi.firefile.util.FireFileUtils;
+
+/**
+ * Tuning knobs for {@link FireFileController}. A value of 0 for a limit means unbounded.
+ */
+public class FireFileOptions {
+    public static class Builder {
+        private long maxCacheBytes = 256 * FireFileUtils.ONE_MB;
+        private int maxCacheEntries = 4096;
+        private EvictionPolicy evictionPolicy = EvictionPolicy.LRU;
+        private long memoryCacheBytes = 0;
+        private long maxMemoryCacheEntryBytes = 256 * FireFileUtils.ONE_KB;
+        private boolean progressiveStreams = false;
+        private boolean cacheUploadedData = true;
+        private long multipartThreshold = 16 * FireFileUtils.ONE_MB;
+        private long multipartPartSize = 8 * FireFileUtils.ONE_MB;
+        private int multipartParallelism = 4;
+        private int multipartRetries = 3;
+        private long segmentedDownloadThreshold = 0;
+        private long downloadSegmentSize = 4 * FireFileUtils.ONE_MB;
+        private int downloadParallelism = 4;
+        private boolean resumableTransfers = true;
+        private int batchSaveConcurrency = 4;
+        private int prefetchConcurrency = 2;
+        private long progressIntervalMillis = 100;
+        private boolean metricsEnabled = false;
+        private boolean contentAddressedUploads = false;
+        private boolean remoteDuplicateCheck = false;
+        private boolean compressTransfers = false;
+
+        public Builder() {
+            // do nothing
+        }
+
+        public Builder(FireFileOptions options) {
+            maxCacheBytes = options.maxCacheBytes();
+            maxCacheEntries = options.maxCacheEntries();
+            evictionPolicy = options.evictionPolicy();
+            memoryCacheBytes = options.memoryCacheBytes();
+            maxMemoryCacheEntryBytes = options.maxMemoryCacheEntryBytes();
+            progressiveStreams = options.progressiveStreams();
+            cacheUploadedData = options.cacheUploadedData();
+            multipartThreshold = options.multipartThreshold();
+            multipartPartSize = options.multipartPartSize();
+            multipartParallelism = options.multipartParallelism();
+            multipartRetries = options.multipartRetries();
+            segmentedDownloadThreshold = options.segmentedDownloadThreshold();
+            downloadSegmentSize = options.downloadSegmentSize();
+            downloadParallelism = options.downloadParallelism();
+            resumableTransfers = options.resumableTransfers();
+            batchSaveConcurrency = options.batchSaveConcurrency();
+            prefetchConcurrency = options.prefetchConcurrency();
+            progressIntervalMillis = options.progressIntervalMillis();
+            metricsEnabled = options.metricsEnabled();
+            contentAddressedUploads = options.contentAddressedUploads();
+            remoteDuplicateCheck = options.remoteDuplicateCheck();
+            compressTransfers = options.compressTransfers();
+        }
+
+        public Builder maxCacheBytes(long maxCacheBytes) {
+            this.maxCacheBytes = maxCacheBytes;
+            return this;
+        }
+
+        public Builder maxCacheEntries(int maxCacheEntries) {
+            this.maxCacheEntries = maxCacheEntries;
+            return this;
+        }
+
+        public Builder evictionPolicy(EvictionPolicy evictionPolicy) {
+            this.evictionPolicy = evictionPolicy;
+            return this;
+        }
+
+        /**
+         * Enables the in-memory tier for {@code getData} with the given byte budget.
+         */
+        public Builder memoryCacheBytes(long memoryCacheBytes) {
+            this.memoryCacheBytes = memoryCacheBytes;
+            return this;
+        }
+
+        public Builder maxMemoryCacheEntryBytes(long maxMemoryCacheEntryBytes) {
+            this.maxMemoryCacheEntryBytes = maxMemoryCacheEntryBytes;
+            return this;
+        }
+
+        /**
+         * Makes {@code getDataStream} return while the download is still running, with a stream
+         * that yields bytes as they arrive. Transfer errors then surface from
+         * {@link java.io.InputStream#read()} instead of the returned task. Segmented downloads, see
+         * {@link #segmentedDownloadThreshold(long)}, assemble the file out of order, so their
+         * stream yields nothing until the download has finished.
+         */
+        public Builder progressiveStreams(boolean progressiveStreams) {
+            this.progressiveStreams = progressiveStreams;
+            return this;
+        }
+
+        /**
+         * Whether {@code save(byte[])} writes the payload to the disk cache once the upload has
+         * succeeded. The upload itself always streams from memory.
+         */
+        public Builder cacheUploadedData(boolean cacheUploadedData) {
+            this.cacheUploadedData = cacheUploadedData;
+            return this;
+        }
+
+        /**
+         * Files of at least this many bytes are uploaded as a parallel multipart upload, 0
+         * disables multipart uploads.
+         */
+        public Builder multipartThreshold(long multipartThreshold) {
+            this.multipartThreshold = multipartThreshold;
+            return this;
+        }
+
+        /**
+         * Size of each multipart part, at least {@link com.invisibi.firefile.transfer.MultipartUploader#MIN_PART_SIZE}.
+         */
+        public Builder multipartPartSize(long multipartPartSize) {
+            this.multipartPartSize = multipartPartSize;
+            return this;
+        }
+
+        /**
+         * Number of parts of one file that are uploaded at the same time.
+         */
+        public Builder multipartParallelism(int multipartParallelism) {
+            this.multipartParallelism = multipartParallelism;
+            return this;
+        }
+
+        /**
+         * How often a failed part is retried before the whole upload fails.
+         */
+        public Builder multipartRetries(int multipartRetries) {
+            this.multipartRetries = multipartRetries;
+            return this;
+        }
+
+        /**
+         * Objects of at least this many bytes are downloaded as concurrent byte ranges, 0 (the
+         * default) disables segmented downloads. Enabling it costs one metadata request per
+         * download, and progressive streams of segmented objects only start once the object is
+         * complete.
+         */
+        public Builder segmentedDownloadThreshold(long segmentedDownloadThreshold) {
+            this.segmentedDownloadThreshold = segmentedDownloadThreshold;
+            return this;
+        }
+
+        /**
+         * Size of each byte range of a segmented download.
+         */
+        public Builder downloadSegmentSize(long downloadSegmentSize) {
+            this.downloadSegmentSize = downloadSegmentSize;
+            return this;
+        }
+
+        /**
+         * Number of byte ranges of one object that are downloaded at the same time.
+         */
+        public Builder downloadParallelism(int downloadParallelism) {
+            this.downloadParallelism = downloadParallelism;
+            return this;
+        }
+
+        /**
+         * Keeps a journal of unfinished downloads and multipart uploads in the cache directory so
+         * that they resume where they stopped, also after a restart, as long as the remote
+         * object is unchanged.
+         */
+        public Builder resumableTransfers(boolean resumableTransfers) {
+            this.resumableTransfers = resumableTransfers;
+            return this;
+        }
+
+        /**
+         * Number of files {@code FireFile.saveAllInBackground} uploads at the same time.
+         */
+        public Builder batchSaveConcurrency(int batchSaveConcurrency) {
+            this.batchSaveConcurrency = batchSaveConcurrency;
+            return this;
+        }
+
+        /**
+         * Number of files {@code FireFile.prefetchInBackground} downloads at the same time.
+         */
+        public Builder prefetchConcurrency(int prefetchConcurrency) {
+            this.prefetchConcurrency = prefetchConcurrency;
+            return this;
+        }
+
+        /**
+         * Minimum time between two calls of one {@code ProgressCallback}. Updates in between are
+         * coalesced; 100% is always delivered right away.
+         */
+        public Builder progressIntervalMillis(long progressIntervalMillis) {
+            this.progressIntervalMillis = progressIntervalMillis;
+            return this;
+        }
+
+        /**
+         * Records latencies, transferred bytes and cache statistics into
+         * {@link com.invisibi.firefile.FireFileMetrics}.
+         */
+        public Builder metricsEnabled(boolean metricsEnabled) {
+            this.metricsEnabled = metricsEnabled;
+            return this;
+        }
+
+        /**
+         * Names uploaded objects after the SHA-256 digest of their content, and skips the upload
+         * when the same content was uploaded before. Costs one extra read of the data to hash it.
+         */
+        public Builder contentAddressedUploads(boolean contentAddressedUploads) {
+            this.contentAddressedUploads = contentAddressedUploads;
+            return this;
+        }
+
+        /**
+         * With {@link #contentAddressedUploads(boolean)}, asks the backend whether the object
+         * exists before every upload, which also finds content uploaded from other devices.
+         */
+        public Builder remoteDuplicateCheck(boolean remoteDuplicateCheck) {
+            this.remoteDuplicateCheck = remoteDuplicateCheck;
+            return this;
+        }
+
+        /**
+         * Gzips text-like content (JSON, XML, plain text, logs, ...) for the transfer and stores
+         * it with {@code Content-Encoding: gzip}. Downloads of objects stored that way are
+         * inflated into the cache by every client, with or without this option. Files above the
+         * multipart threshold are sent as they are.
+         */
+        public Builder compressTransfers(boolean compressTransfers) {
+            this.compressTransfers = compressTransfers;
+            return this;
+        }
+
+        public FireFileOptions build() {
+            return new FireFileOptions(this);
+        }
+    }
+
+    private final long maxCacheBytes;
+    private final int maxCacheEntries;
+    private final EvictionPolicy evictionPolicy;
+    private final long memoryCacheBytes;
+    private final long maxMemoryCacheEntryBytes;
+    private final boolean progressiveStreams;
+    private final boolean cacheUploadedData;
+    private final long multipartThreshold;
+    private final long multipartPartSize;
+    private final int multipartParallelism;
+    private final int multipartRetries;
+    private final long segmentedDownloadThreshold;
+    private final long downloadSegmentSize;
+    private final int downloadParallelism;
+    private final boolean resumableTransfers;
+    private final int batchSaveConcurrency;
+    private final int prefetchConcurrency;
+    private final long progressIntervalMillis;
+    private final boolean metricsEnabled;
+    private final boolean contentAddressedUploads;
+    private final boolean remoteDuplicateCheck;
+    private final boolean compressTransfers;
+
+    private FireFileOptions(Builder builder) {
+        maxCacheBytes = builder.maxCacheBytes;
+        maxCacheEntries = builder.maxCacheEntries;
+        evictionPolicy = builder.evictionPolicy != null ? builder.evictionPolicy : EvictionPolicy.LRU;
+        memoryCacheBytes = builder.memoryCacheBytes;
+        maxMemoryCacheEntryBytes = builder.maxMemoryCacheEntryBytes;
+        progressiveStreams = builder.progressiveStreams;
+        cacheUploadedData = builder.cacheUploadedData;
+        multipartThreshold = builder.multipartThreshold;
+        multipartPartSize = builder.multipartPartSize;
+        multipartParallelism = builder.multipartParallelism;
+        multipartRetries = builder.multipartRetries;
+        segmentedDownloadThreshold = builder.segmentedDownloadThreshold;
+        downloadSegmentSize = builder.downloadSegmentSize;
+        downloadParallelism = builder.downloadParallelism;
+        resumableTransfers = builder.resumableTransfers;
+        batchSaveConcurrency = builder.batchSaveConcurrency;
+        prefetchConcurrency = builder.prefetchConcurrency;
+        progressIntervalMillis = builder.progressIntervalMillis;
+        metricsEnabled = builder.metricsEnabled;
+        contentAddressedUploads = builder.contentAddressedUploads;
+        remoteDuplicateCheck = builder.remoteDuplicateCheck;
+        compressTransfers = builder.compressTransfers;
+    }
+
+    public long maxCacheBytes() {
+        return maxCacheBytes;
+    }
+
+    public int maxCacheEntries() {
+        return maxCacheEntries;
+    }
+
+    public EvictionPolicy evictionPolicy() {
+        return evictionPolicy;
+    }
+
+    public long memoryCacheBytes() {
+        return memoryCacheBytes;
+    }
+
+    public long maxMemoryCacheEntryBytes() {
+        return maxMemoryCacheEntryBytes;
+    }
+
+    public boolean progressiveStreams() {
+        return progressiveStreams;
+    }
+
+    public boolean cacheUploadedData() {
+        return cacheUploadedData;
+    }
+
+    public long multipartThreshold() {
+        return multipartThreshold;
+    }
+
+    public long multipartPartSize() {
+        return multipartPartSize;
+    }
+
+    public int multipartParallelism() {
+        return multipartParallelism;
+    }
+
+    public int multipartRetries() {
+        return multipartRetries;
+    }
+
+    public long segmentedDownloadThreshold() {
+        return segmentedDownloadThreshold;
+    }
+
+    public long downloadSegmentSize() {
+        return downloadSegmentSize;
+    }
+
+    public int downloadParallelism() {
+        return downloadParallelism;
+    }
+
+    public boolean resumableTransfers() {
+        return resumableTransfers;
+    }
+
+    public int batchSaveConcurrency() {
+        return batchSaveConcurrency;
+    }
+
+    public int prefetchConcurrency() {
+        return prefetchConcurrency;
+    }
+
+    public long progressIntervalMillis() {
+        return progressIntervalMillis;
+    }
+
+    public boolean metricsEnabled() {
+        return metricsEnabled;
+    }
+
+    public boolean contentAddressedUploads() {
+        return contentAddressedUploads;
+    }
+
+    public boolean remoteDuplicateCheck() {
+        return remoteDuplicateCheck;
+    }
+
+    public boolean compressTransfers() {
+        return compressTransfers;
+    }
+}
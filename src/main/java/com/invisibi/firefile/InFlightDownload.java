@@ -0,0 +1,194 @@
+package com.invisibi.firefile;
+
+import com.invisibi.firefile.callback.ProgressCallback;
+import com.invisibi.firefile.transfer.TransferBackend;
+
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import bolts.Continuation;
+import bolts.Task;
+import bolts.TaskCompletionSource;
+
+/**
+ * A single download shared by every concurrent fetch of the same object. Each caller gets its own
+ * result task and progress callback; the transfer itself is cancelled once every caller has
+ * cancelled.
+ */
+class InFlightDownload {
+    private final File tempFile;
+    private final TaskCompletionSource<File> result = new TaskCompletionSource<>();
+    private final TaskCompletionSource<Void> cancellation = new TaskCompletionSource<>();
+    private final Set<ProgressCallback> progressCallbacks = new CopyOnWriteArraySet<>();
+    private int waiters;
+    private boolean started;
+    private boolean tempFileReady;
+    private boolean unchanged;
+    // Bumped on every progress event and on completion; readers of the temp file wait on it.
+    private long version;
+
+    private final TransferBackend.ProgressListener progressListener = new TransferBackend.ProgressListener() {
+        @Override
+        public void onProgress(long bytesCurrent, long bytesTotal) {
+            signal();
+            if (bytesTotal <= 0) {
+                return;
+            }
+            final int percentDone = (int) (((float) bytesCurrent / (float) bytesTotal) * 100);
+            for (ProgressCallback progressCallback : progressCallbacks) {
+                progressCallback.done(percentDone);
+            }
+        }
+    };
+
+    InFlightDownload(File tempFile) {
+        this.tempFile = tempFile;
+    }
+
+    File getTempFile() {
+        return tempFile;
+    }
+
+    /**
+     * @return {@code true} for the one caller that should start the transfer
+     */
+    synchronized boolean claimStart() {
+        if (started) {
+            return false;
+        }
+        started = true;
+        return true;
+    }
+
+    synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Blocks until the download makes progress past {@code knownVersion} or completes.
+     */
+    synchronized void awaitChange(long knownVersion) throws InterruptedException {
+        while (version == knownVersion && !result.getTask().isCompleted()) {
+            wait();
+        }
+    }
+
+    /**
+     * Called once the temp file holds nothing but data of the current transfer; until then it may
+     * be a partial file of an older version that is about to be dropped.
+     */
+    synchronized void markTempFileReady() {
+        tempFileReady = true;
+        signal();
+    }
+
+    synchronized boolean isTempFileReady() {
+        return tempFileReady;
+    }
+
+    /**
+     * Called by a revalidation that found the cached copy current, so it completes with the file
+     * already in the cache instead of new content.
+     */
+    synchronized void markUnchanged() {
+        unchanged = true;
+    }
+
+    synchronized boolean isUnchanged() {
+        return unchanged;
+    }
+
+    private synchronized void signal() {
+        version++;
+        notifyAll();
+    }
+
+    TransferBackend.ProgressListener progressListener() {
+        return progressListener;
+    }
+
+    /**
+     * Cancelled when the last waiting caller cancels.
+     */
+    Task<Void> cancellationToken() {
+        return cancellation.getTask();
+    }
+
+    Task<File> getTask() {
+        return result.getTask();
+    }
+
+    void start(Task<File> download) {
+        download.continueWith(new Continuation<File, Void>() {
+            @Override
+            public Void then(Task<File> task) throws Exception {
+                if (task.isCancelled()) {
+                    result.trySetCancelled();
+                } else if (task.isFaulted()) {
+                    result.trySetError(task.getError());
+                } else {
+                    result.trySetResult(task.getResult());
+                }
+                signal();
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Registers a caller and returns the task it should wait on. Must be called before
+     * {@link #start(Task)} for the caller that starts the download.
+     */
+    Task<File> join(final ProgressCallback progressCallback, final Task<Void> cancellationToken) {
+        synchronized (this) {
+            waiters++;
+        }
+        if (progressCallback != null) {
+            progressCallbacks.add(progressCallback);
+        }
+
+        final TaskCompletionSource<File> tcs = new TaskCompletionSource<>();
+        result.getTask().continueWith(new Continuation<File, Void>() {
+            @Override
+            public Void then(Task<File> task) throws Exception {
+                if (progressCallback != null) {
+                    progressCallbacks.remove(progressCallback);
+                }
+                if (task.isCancelled()) {
+                    tcs.trySetCancelled();
+                } else if (task.isFaulted()) {
+                    tcs.trySetError(task.getError());
+                } else {
+                    tcs.trySetResult(task.getResult());
+                }
+                return null;
+            }
+        });
+        if (cancellationToken != null) {
+            cancellationToken.continueWith(new Continuation<Void, Void>() {
+                @Override
+                public Void then(Task<Void> task) throws Exception {
+                    if (task.isCancelled() && tcs.trySetCancelled()) {
+                        leave(progressCallback);
+                    }
+                    return null;
+                }
+            });
+        }
+        return tcs.getTask();
+    }
+
+    private void leave(ProgressCallback progressCallback) {
+        if (progressCallback != null) {
+            progressCallbacks.remove(progressCallback);
+        }
+        final boolean last;
+        synchronized (this) {
+            last = --waiters == 0;
+        }
+        if (last) {
+            cancellation.trySetCancelled();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.invisibi.firefile;
+
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded thread pool that runs queued work by priority class. To keep low priority work from
+ * starving, a task's rank is its enqueue time pushed back by {@code agingMillis} per class, so a
+ * task that has waited long enough overtakes fresh work of a higher class. Workers run
+ * {@link FireFileExecutors.Priority#BACKGROUND} tasks at background OS priority and everything
+ * else at the default one.
+ */
+class PriorityExecutor {
+    /**
+     * Sets the OS priority of the calling worker thread.
+     */
+    interface ThreadPriority {
+        void set(boolean background);
+    }
+
+    static final ThreadPriority ANDROID_THREAD_PRIORITY = new ThreadPriority() {
+        @Override
+        public void set(boolean background) {
+            Process.setThreadPriority(background ? Process.THREAD_PRIORITY_BACKGROUND : Process.THREAD_PRIORITY_DEFAULT);
+        }
+    };
+
+    // Replaced by tests and benchmarks, which run on the JVM without android.os.Process.
+    private static volatile ThreadPriority threadPriority = ANDROID_THREAD_PRIORITY;
+
+    // Whether the current worker runs at background OS priority, so that it only changes between
+    // tasks of different classes.
+    private static final ThreadLocal<Boolean> BACKGROUND_THREAD = new ThreadLocal<>();
+
+    private final ThreadPoolExecutor pool;
+    private final long agingNanos;
+    private final AtomicLong sequence = new AtomicLong();
+
+    PriorityExecutor(final String name, final int threads, final long agingMillis) {
+        agingNanos = TimeUnit.MILLISECONDS.toNanos(agingMillis);
+        pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    static void setThreadPriority(ThreadPriority priority) {
+        threadPriority = priority;
+    }
+
+    /**
+     * @param tag identifies the work for {@link #prioritize}, or {@code null}
+     */
+    Executor executor(final FireFileExecutors.Priority priority, final Object tag) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                pool.execute(new Item(runnable, priority, tag, System.nanoTime(), sequence.incrementAndGet()));
+            }
+        };
+    }
+
+    /**
+     * Moves queued work tagged {@code tag} up to {@code priority}. Work that is already running
+     * or already ranked higher is left alone.
+     *
+     * @return the number of tasks that were moved
+     */
+    int prioritize(final Object tag, final FireFileExecutors.Priority priority) {
+        final BlockingQueue<Runnable> queue = pool.getQueue();
+        final List<Item> promoted = new ArrayList<>();
+        for (Runnable runnable : queue) {
+            final Item item = (Item) runnable;
+            if (tag.equals(item.tag) && item.priority.ordinal() > priority.ordinal()) {
+                promoted.add(item);
+            }
+        }
+        int moved = 0;
+        for (Item item : promoted) {
+            // only the caller that wins the removal re-queues, a worker may have taken it already
+            if (queue.remove(item)) {
+                // through the pool, which starts a worker if all of them have timed out meanwhile
+                pool.execute(new Item(item.runnable, priority, item.tag, item.enqueuedNanos, item.sequence));
+                moved++;
+            }
+        }
+        return moved;
+    }
+
+    private class Item implements Runnable, Comparable<Item> {
+        private final Runnable runnable;
+        private final FireFileExecutors.Priority priority;
+        private final Object tag;
+        private final long enqueuedNanos;
+        private final long sequence;
+        private final long rank;
+
+        Item(Runnable runnable, FireFileExecutors.Priority priority, Object tag, long enqueuedNanos, long sequence) {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.tag = tag;
+            this.enqueuedNanos = enqueuedNanos;
+            this.sequence = sequence;
+            rank = enqueuedNanos + priority.ordinal() * agingNanos;
+        }
+
+        @Override
+        public void run() {
+            final boolean background = priority == FireFileExecutors.Priority.BACKGROUND;
+            if (!Boolean.valueOf(background).equals(BACKGROUND_THREAD.get())) {
+                threadPriority.set(background);
+                BACKGROUND_THREAD.set(background);
+            }
+            runnable.run();
+        }
+
+        @Override
+        public int compareTo(Item other) {
+            // nanoTime values may wrap, so compare differences
+            final long difference = rank - other.rank;
+            if (difference != 0) {
+                return difference < 0 ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.invisibi.firefile;
+
+import com.invisibi.firefile.callback.ProgressCallback;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers progress callbacks on the main thread without flooding it. Updates are dropped unless
+ * the percentage changed, each callback fires at most once per {@code minIntervalMillis} (except
+ * for 100%), and the pending updates of all transfers go out together in one runnable per frame.
+ */
+class ProgressDispatcher {
+    private static final long FRAME_MILLIS = 16;
+
+    private final long minIntervalMillis;
+    private final ScheduledExecutorService scheduler;
+    private final Executor mainExecutor;
+    private final Set<Channel> pending = new LinkedHashSet<>();
+    private boolean flushScheduled;
+
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    ProgressDispatcher(long minIntervalMillis, ScheduledExecutorService scheduler, Executor mainExecutor) {
+        this.minIntervalMillis = minIntervalMillis;
+        this.scheduler = scheduler;
+        this.mainExecutor = mainExecutor;
+    }
+
+    /**
+     * @return a callback that may be called from any thread and forwards to {@code progressCallback}
+     * on the main thread
+     */
+    ProgressCallback wrap(final ProgressCallback progressCallback) {
+        if (progressCallback == null) {
+            return null;
+        }
+        return new Channel(progressCallback);
+    }
+
+    private void scheduleFlush(long delayMillis) {
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mainExecutor.execute(flush);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        final List<Channel> ready = new ArrayList<>();
+        final List<Integer> values = new ArrayList<>();
+        synchronized (this) {
+            flushScheduled = false;
+            final long now = TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+            long nextDelay = Long.MAX_VALUE;
+            final Iterator<Channel> iterator = pending.iterator();
+            while (iterator.hasNext()) {
+                final Channel channel = iterator.next();
+                final long wait = channel.deliveredAt + minIntervalMillis - now;
+                if (channel.latest < 100 && channel.delivered >= 0 && wait > 0) {
+                    nextDelay = Math.min(nextDelay, wait);
+                    continue;
+                }
+                iterator.remove();
+                channel.delivered = channel.latest;
+                channel.deliveredAt = now;
+                ready.add(channel);
+                values.add(channel.latest);
+            }
+            if (!pending.isEmpty()) {
+                scheduleFlush(Math.max(FRAME_MILLIS, nextDelay));
+            }
+        }
+        for (int i = 0; i < ready.size(); i++) {
+            ready.get(i).target.done(values.get(i));
+        }
+    }
+
+    private class Channel implements ProgressCallback {
+        private final ProgressCallback target;
+        // guarded by the dispatcher
+        private int latest = -1;
+        private int delivered = -1;
+        private long deliveredAt;
+
+        Channel(ProgressCallback target) {
+            this.target = target;
+        }
+
+        @Override
+        public void done(Integer percentDone) {
+            synchronized (ProgressDispatcher.this) {
+                if (percentDone == latest) {
+                    return;
+                }
+                latest = percentDone;
+                if (latest == delivered) {
+                    pending.remove(this);
+                    return;
+                }
+                pending.add(this);
+                scheduleFlush(FRAME_MILLIS);
+            }
+        }
+    }
+}
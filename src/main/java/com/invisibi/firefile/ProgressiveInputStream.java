@@ -0,0 +1,119 @@
+package com.invisibi.firefile;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+
+import bolts.Task;
+
+/**
+ * Reads a download's temp file while it is still being written, blocking only when the reader
+ * has caught up with the transfer. The file handle stays valid when the finished temp file is
+ * moved into the cache, so the reader sees the complete object either way. The temp file is not
+ * opened before the download has marked it ready, so a stale partial file is never read; a
+ * segmented download never does, and its reader starts on the finished cache file instead.
+ */
+class ProgressiveInputStream extends InputStream {
+    private final InFlightDownload download;
+    private final Task<File> task;
+    private RandomAccessFile file;
+    private long position;
+    private boolean closed;
+
+    /**
+     * @param task the caller's own view of the download, as returned by
+     *             {@link InFlightDownload#join}
+     */
+    ProgressiveInputStream(InFlightDownload download, Task<File> task) {
+        this.download = download;
+        this.task = task;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int n = read(single, 0, 1);
+        return n == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        while (true) {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            final long knownVersion = download.version();
+            final boolean completed = task.isCompleted();
+            if (completed) {
+                checkResult();
+            }
+            if (open(completed)) {
+                file.seek(position);
+                int n = file.read(buffer, offset, length);
+                if (n > 0) {
+                    position += n;
+                    return n;
+                }
+            }
+            if (completed) {
+                return -1;
+            }
+            try {
+                download.awaitChange(knownVersion);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private boolean open(boolean completed) throws IOException {
+        if (file != null) {
+            return true;
+        }
+        if (!completed && !download.isTempFileReady()) {
+            return false;
+        }
+        try {
+            // Once the download completed the temp file has been moved into the cache.
+            file = new RandomAccessFile(completed ? task.getResult() : download.getTempFile(), "r");
+            return true;
+        } catch (FileNotFoundException e) {
+            if (completed) {
+                throw e;
+            }
+            // the transfer has not written anything yet
+            return false;
+        }
+    }
+
+    private void checkResult() throws IOException {
+        if (task.isCancelled()) {
+            throw new InterruptedIOException("Download FFile cancelled");
+        }
+        if (task.isFaulted()) {
+            throw new IOException("Download FFile fail", task.getError());
+        }
+    }
+
+    @Override
+    public int available() throws IOException {
+        if (file == null) {
+            return 0;
+        }
+        return (int) Math.max(0, Math.min(Integer.MAX_VALUE, file.length() - position));
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (file != null) {
+            file.close();
+        }
+    }
+}
@@ -9,45 +9,45 @@ import bolts.Task;
 
 /**
  * Created by Tiny on 4/28/16.
+ *
+ * Orders the tasks of one file. {@link #enqueue} runs a task exclusively, after every task
+ * enqueued before it. {@link #enqueueShared} tasks that arrive between two exclusive ones wait for
+ * the same predecessors and run concurrently; the next exclusive task waits for all of them.
  */
 class TaskQueue {
-    private Task<Void> tail;
     private final Lock lock = new ReentrantLock();
+    // guarded by lock
+    private Task<Void> tail;
+    // What the current run of shared tasks waits for, or null when the last task is exclusive.
+    private Task<Void> sharedToAwait;
 
-    private Task<Void> getTaskToAwait() {
+    <T> Task<T> enqueue(Continuation<Void, Task<T>> taskStart) {
         lock.lock();
         try {
-            Task<Void> toAwait = tail != null ? tail : Task.<Void>forResult(null);
-            return toAwait.continueWith(new Continuation<Void, Void>() {
-                @Override
-                public Void then(Task<Void> task) throws Exception {
-                    return null;
-                }
-            });
+            final Task<Void> oldTail = tail != null ? tail : Task.<Void>forResult(null);
+            final Task<T> task = start(taskStart, ignoreResult(oldTail));
+            sharedToAwait = null;
+            // The tail task should be dependent on the old tail as well as the newly-created task. This
+            // prevents cancellation of the new task from causing the queue to run out of order.
+            tail = Task.whenAll(Arrays.asList(oldTail, task));
+            return task;
         } finally {
             lock.unlock();
         }
     }
 
-    <T> Task<T> enqueue(Continuation<Void, Task<T>> taskStart) {
+    /**
+     * Like {@link #enqueue}, but runs concurrently with the shared tasks enqueued since the last
+     * exclusive one.
+     */
+    <T> Task<T> enqueueShared(Continuation<Void, Task<T>> taskStart) {
         lock.lock();
         try {
-            Task<T> task;
-            Task<Void> oldTail = tail != null ? tail : Task.<Void>forResult(null);
-            // The task created by taskStart is responsible for waiting for the task passed into it before
-            // doing its work (this gives it an opportunity to do startup work or save state before
-            // waiting for its turn in the queue)
-            try {
-                Task<Void> toAwait = getTaskToAwait();
-                task = taskStart.then(toAwait);
-            } catch (RuntimeException e) {
-                throw e;
-            } catch (Exception e) {
-                throw new RuntimeException(e);
+            final Task<Void> oldTail = tail != null ? tail : Task.<Void>forResult(null);
+            if (sharedToAwait == null) {
+                sharedToAwait = ignoreResult(oldTail);
             }
-
-            // The tail task should be dependent on the old tail as well as the newly-created task. This
-            // prevents cancellation of the new task from causing the queue to run out of order.
+            final Task<T> task = start(taskStart, sharedToAwait);
             tail = Task.whenAll(Arrays.asList(oldTail, task));
             return task;
         } finally {
@@ -55,6 +55,28 @@ class TaskQueue {
         }
     }
 
+    private static <T> Task<T> start(Continuation<Void, Task<T>> taskStart, Task<Void> toAwait) {
+        // The task created by taskStart is responsible for waiting for the task passed into it before
+        // doing its work (this gives it an opportunity to do startup work or save state before
+        // waiting for its turn in the queue)
+        try {
+            return taskStart.then(toAwait);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Task<Void> ignoreResult(Task<Void> task) {
+        return task.continueWith(new Continuation<Void, Void>() {
+            @Override
+            public Void then(Task<Void> task) throws Exception {
+                return null;
+            }
+        });
+    }
+
     static <T> Continuation<T, Task<T>> waitFor(final Task<Void> toAwait) {
         return new Continuation<T, Task<T>>() {
             @Override
@@ -69,20 +91,19 @@ class TaskQueue {
         };
     }
 
-    Lock getLock() {
-        return lock;
-    }
-
+    /**
+     * Blocks until every task enqueued before this call has finished.
+     */
     void waitUntilFinished() throws InterruptedException {
+        final Task<Void> last;
         lock.lock();
         try {
-            if (tail == null) {
-                return;
-            }
-            tail.waitForCompletion();
+            last = tail;
         } finally {
             lock.unlock();
         }
+        if (last != null) {
+            last.waitForCompletion();
+        }
     }
 }
-
@@ -0,0 +1,201 @@
+package com.invisibi.firefile.cache;
+
+import com.invisibi.firefile.util.FireFileIOUtils;
+import com.invisibi.firefile.util.FireFileUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Append-only log of {@link DiskCache} entries, one record per line, so the cache can be indexed
+ * at startup without touching every file. The log is rewritten from the live entries once it
+ * holds much more records than entries. Not thread-safe; guarded by the owning cache.
+ * <pre>
+ * P key size lastAccess accessCount eTag lastModified   entry written, eTag is "-" when unknown
+ * A key lastAccess                                      entry read
+ * R key                                                 entry removed
+ * </pre>
+ */
+class CacheIndexLog {
+    static final String FILE_NAME = "index.log";
+    private static final String HEADER = "FireFileCacheIndex 2";
+    private static final String NO_ETAG = "-";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private Writer writer;
+    private int records;
+
+    CacheIndexLog(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the entries recorded in the log, or {@code null} when there is no log
+     * @throws IOException when the log cannot be read or is corrupted; a torn last record, as
+     *                     left by a crash during a write, is ignored
+     */
+    Map<String, DiskCache.Entry> read() throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        closeWriter();
+        final Map<String, DiskCache.Entry> entries = new HashMap<>();
+        boolean torn = false;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            if (!HEADER.equals(reader.readLine())) {
+                throw new IOException("Unknown cache index format");
+            }
+            int count = 0;
+            String line = reader.readLine();
+            while (line != null) {
+                final String next = reader.readLine();
+                if (!apply(entries, line)) {
+                    if (next != null) {
+                        throw new IOException("Corrupted cache index record " + (count + 1));
+                    }
+                    torn = true;
+                }
+                count++;
+                line = next;
+            }
+            records = count;
+        } finally {
+            FireFileIOUtils.closeQuietly(reader);
+        }
+        if (torn) {
+            // appending after a partial line would corrupt the next record
+            rewrite(entries.values());
+        }
+        return entries;
+    }
+
+    private static boolean apply(final Map<String, DiskCache.Entry> entries, final String line) {
+        final String[] fields = line.split(" ");
+        try {
+            switch (fields[0]) {
+                case "P":
+                    if (fields.length != 7) {
+                        return false;
+                    }
+                    entries.put(fields[1], new DiskCache.Entry(fields[1], Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+                            Integer.parseInt(fields[4]), NO_ETAG.equals(fields[5]) ? null : fields[5], Long.parseLong(fields[6])));
+                    return true;
+                case "A":
+                    if (fields.length != 3) {
+                        return false;
+                    }
+                    final DiskCache.Entry entry = entries.get(fields[1]);
+                    if (entry != null) {
+                        entries.put(entry.key(), new DiskCache.Entry(entry.key(), entry.size(), Long.parseLong(fields[2]), entry.accessCount() + 1,
+                                entry.eTag(), entry.lastModified()));
+                    }
+                    return true;
+                case "R":
+                    if (fields.length != 2) {
+                        return false;
+                    }
+                    entries.remove(fields[1]);
+                    return true;
+                default:
+                    return false;
+            }
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    void appendPut(DiskCache.Entry entry) throws IOException {
+        append(putRecord(entry));
+    }
+
+    void appendAccess(String key, long lastAccess) throws IOException {
+        append("A " + key + " " + lastAccess);
+    }
+
+    void appendRemove(String key) throws IOException {
+        append("R " + key);
+    }
+
+    private static String putRecord(DiskCache.Entry entry) {
+        return "P " + entry.key() + " " + entry.size() + " " + entry.lastAccess() + " " + entry.accessCount() + " "
+                + (entry.eTag() != null ? entry.eTag() : NO_ETAG) + " " + entry.lastModified();
+    }
+
+    private void append(String record) throws IOException {
+        if (writer == null) {
+            final boolean exists = file.isFile();
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF_8));
+            if (!exists) {
+                writer.write(HEADER);
+                writer.write('\n');
+            }
+        }
+        writer.write(record);
+        writer.write('\n');
+        records++;
+    }
+
+    void flush() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+    }
+
+    int records() {
+        return records;
+    }
+
+    /**
+     * Replaces the log with one record per entry.
+     */
+    void rewrite(Collection<DiskCache.Entry> entries) throws IOException {
+        closeWriter();
+        final File temp = new File(file.getPath() + ".tmp");
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(FireFileUtils.openOutputStream(temp), UTF_8));
+            out.write(HEADER);
+            out.write('\n');
+            for (DiskCache.Entry entry : entries) {
+                out.write(putRecord(entry));
+                out.write('\n');
+            }
+            out.close();
+            out = null;
+            FireFileUtils.deleteQuietly(file);
+            FireFileUtils.moveFile(temp, file);
+        } finally {
+            FireFileIOUtils.closeQuietly(out);
+            FireFileUtils.deleteQuietly(temp);
+        }
+        records = entries.size();
+    }
+
+    /**
+     * Drops the log, e.g. after a write failed, so that the next startup rebuilds the index.
+     */
+    void delete() {
+        closeWriter();
+        FireFileUtils.deleteQuietly(file);
+        records = 0;
+    }
+
+    private void closeWriter() {
+        FireFileIOUtils.closeQuietly(writer);
+        writer = null;
+    }
+}
@@ -0,0 +1,543 @@
+package com.invisibi.firefile.cache;
+
+import com.invisibi.firefile.util.FireFileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size-bounded cache directory. Entries are tracked in memory and trimmed in small batches on
+ * the given scheduler whenever the byte or entry limit is exceeded.
+ * <p>
+ * Keys are hex SHA-1 digests (see {@link #keyFor(String)}) and files are spread over 256 shard
+ * directories named after the first two hex digits, so no directory grows beyond a few hundred
+ * entries even with tens of thousands of cached objects.
+ * <p>
+ * The entries are persisted in a {@link CacheIndexLog} next to the shards, so the index is
+ * rebuilt from a directory scan only on first use or when the log is damaged.
+ * <p>
+ * Everything else under the directory (temp and partial downloads, transfer journals, the index
+ * log) counts against the byte limit as well. Its size is measured by walking the directory at
+ * most every {@link #AUXILIARY_SCAN_INTERVAL_MILLIS}; when the cache is over its limits, temp
+ * files that have not been touched for {@link #STALE_AUXILIARY_MILLIS} are deleted first. Files
+ * with a life of their own, such as journals, upload indexes and sparse downloads, are only
+ * counted; their owners remove them.
+ */
+public class DiskCache {
+    private static final int EVICTION_BATCH_SIZE = 32;
+    private static final long TRIM_DELAY_MILLIS = 500;
+    private static final int SHARD_NAME_LENGTH = 2;
+    private static final int KEY_LENGTH = 40;
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final long FLUSH_DELAY_MILLIS = 2000;
+    private static final int MIN_COMPACTION_RECORDS = 1000;
+    private static final long AUXILIARY_SCAN_INTERVAL_MILLIS = 10 * 1000;
+    private static final long STALE_AUXILIARY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    public static final class Entry {
+        private final String key;
+        private final long size;
+        private final long lastAccess;
+        private final int accessCount;
+        private final String eTag;
+        private final long lastModified;
+
+        Entry(String key, long size, long lastAccess, int accessCount, String eTag, long lastModified) {
+            this.key = key;
+            this.size = size;
+            this.lastAccess = lastAccess;
+            this.accessCount = accessCount;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+
+        public String key() {
+            return key;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        public long lastAccess() {
+            return lastAccess;
+        }
+
+        public int accessCount() {
+            return accessCount;
+        }
+
+        /**
+         * @return the ETag of the remote object the file was downloaded from, or {@code null}
+         */
+        public String eTag() {
+            return eTag;
+        }
+
+        /**
+         * @return when the remote object was last modified, in milliseconds since the epoch, or 0
+         * when unknown
+         */
+        public long lastModified() {
+            return lastModified;
+        }
+    }
+
+    private final File directory;
+    private final long maxBytes;
+    private final int maxEntries;
+    private final EvictionPolicy evictionPolicy;
+    private final ScheduledExecutorService scheduler;
+    private final CacheIndexLog indexLog;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private long size;
+    // bytes of the files that are not entries, as of auxiliaryScanTime
+    private long auxiliarySize;
+    private long auxiliaryScanTime;
+    private boolean loaded;
+    // entries hold every cached file and the log matches them
+    private boolean indexed;
+    private boolean trimScheduled;
+    private boolean flushScheduled;
+
+    private final Runnable trimRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DiskCache.this) {
+                trimScheduled = false;
+            }
+            trim(EVICTION_BATCH_SIZE);
+        }
+    };
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DiskCache.this) {
+                flushScheduled = false;
+                flushIndex();
+            }
+        }
+    };
+
+    public DiskCache(File directory, long maxBytes, int maxEntries, EvictionPolicy evictionPolicy, ScheduledExecutorService scheduler) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        this.evictionPolicy = evictionPolicy != null ? evictionPolicy : EvictionPolicy.LRU;
+        this.scheduler = scheduler;
+        indexLog = new CacheIndexLog(getIndexFile());
+        scheduleTrim(0);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the file the index is persisted in, directly under {@link #getDirectory()}
+     */
+    public File getIndexFile() {
+        return new File(directory, CacheIndexLog.FILE_NAME);
+    }
+
+    public static String keyFor(String objectKey) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return FireFileUtils.toHex(digest.digest(objectKey.getBytes(Charset.forName("UTF-8"))));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public File getFile(String key) {
+        return new File(new File(directory, key.substring(0, SHARD_NAME_LENGTH)), key);
+    }
+
+    public File getTempFile(String key) {
+        return new File(new File(directory, key.substring(0, SHARD_NAME_LENGTH)), key + TEMP_SUFFIX);
+    }
+
+    /**
+     * Whether there is a file for {@code key}. Once the index is loaded this is a lookup in
+     * memory and does not touch the disk.
+     */
+    public boolean contains(String key) {
+        synchronized (this) {
+            if (indexed) {
+                return entries.containsKey(key);
+            }
+        }
+        return getFile(key).isFile();
+    }
+
+    /**
+     * @return the index entry for {@code key}, or {@code null} when it is not cached
+     */
+    public Entry getEntry(String key) {
+        load();
+        synchronized (this) {
+            return entries.get(key);
+        }
+    }
+
+    /**
+     * Returns the cached file for {@code key} and records the access, or {@code null} on a miss.
+     */
+    public File get(String key) {
+        load();
+        final File file = getFile(key);
+        if (!file.isFile()) {
+            synchronized (this) {
+                if (removeEntry(key)) {
+                    logRemove(key);
+                }
+            }
+            return null;
+        }
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            final long now = System.currentTimeMillis();
+            if (entry == null) {
+                entry = new Entry(key, file.length(), now, 1, null, 0);
+                addEntry(entry);
+                logPut(entry);
+            } else {
+                entries.put(key, new Entry(key, entry.size, now, entry.accessCount + 1, entry.eTag, entry.lastModified));
+                logAccess(key, now);
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Records that the file for {@code key} has been written.
+     */
+    public void put(String key) {
+        put(key, null, 0);
+    }
+
+    /**
+     * Records that the file for {@code key} has been written with the content of the remote
+     * object version {@code eTag}, last modified at {@code lastModified} (0 when unknown).
+     */
+    public void put(String key, String eTag, long lastModified) {
+        load();
+        final File file = getFile(key);
+        synchronized (this) {
+            Entry previous = entries.get(key);
+            removeEntry(key);
+            final Entry entry = new Entry(key, file.length(), System.currentTimeMillis(), previous != null ? previous.accessCount : 0, eTag,
+                    lastModified);
+            addEntry(entry);
+            logPut(entry);
+        }
+        scheduleTrim(TRIM_DELAY_MILLIS);
+    }
+
+    public void remove(String key) {
+        load();
+        synchronized (this) {
+            removeEntry(key);
+            logRemove(key);
+        }
+        FireFileUtils.deleteQuietly(getFile(key));
+    }
+
+    public void clear() {
+        synchronized (this) {
+            entries.clear();
+            size = 0;
+            auxiliarySize = 0;
+            indexLog.delete();
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            FireFileUtils.deleteQuietly(file);
+        }
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized int entryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Evicts at most {@code maxEvictions} entries and schedules another round if the cache is
+     * still over its limits.
+     */
+    void trim(int maxEvictions) {
+        load();
+        final boolean overLimit;
+        final boolean scanDue;
+        synchronized (this) {
+            overLimit = isOverLimit(size + auxiliarySize, entries.size());
+            scanDue = System.currentTimeMillis() - auxiliaryScanTime >= AUXILIARY_SCAN_INTERVAL_MILLIS;
+        }
+        if (scanDue) {
+            final long scanTime = System.currentTimeMillis();
+            long auxiliary = measureAuxiliary(directory, false, overLimit ? scanTime - STALE_AUXILIARY_MILLIS : 0);
+            if (!overLimit && isOverLimit(size() + auxiliary, entryCount())) {
+                auxiliary = measureAuxiliary(directory, false, scanTime - STALE_AUXILIARY_MILLIS);
+            }
+            synchronized (this) {
+                auxiliarySize = auxiliary;
+                auxiliaryScanTime = scanTime;
+            }
+        } else if (!overLimit) {
+            return;
+        }
+        synchronized (this) {
+            long remainingSize = size + auxiliarySize;
+            int remainingCount = entries.size();
+            if (!isOverLimit(remainingSize, remainingCount)) {
+                return;
+            }
+            List<Entry> snapshot = new ArrayList<>(entries.values());
+            Collections.sort(snapshot, evictionPolicy);
+            int evicted = 0;
+            for (Entry entry : snapshot) {
+                if (evicted >= maxEvictions || !isOverLimit(remainingSize, remainingCount)) {
+                    break;
+                }
+                // deleted under the lock, so a put() of the same key cannot slip in between
+                removeEntry(entry.key);
+                logRemove(entry.key);
+                FireFileUtils.deleteQuietly(getFile(entry.key));
+                remainingSize -= entry.size;
+                remainingCount--;
+                evicted++;
+            }
+            // nothing left to evict when auxiliary files alone exceed the limit
+            if (evicted > 0 && isOverLimit(size + auxiliarySize, entries.size())) {
+                scheduleTrim(0);
+            }
+        }
+    }
+
+    private void load() {
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+            loaded = true;
+            try {
+                final Map<String, Entry> logged = indexLog.read();
+                if (logged != null) {
+                    // every change goes through load() first, so the log is the whole truth
+                    for (Entry entry : logged.values()) {
+                        if (!entries.containsKey(entry.key)) {
+                            addEntry(entry);
+                        }
+                    }
+                    indexed = true;
+                    return;
+                }
+            } catch (IOException e) {
+                indexLog.delete();
+            }
+        }
+        scan();
+        synchronized (this) {
+            compactIndex();
+        }
+    }
+
+    private void scan() {
+        final File[] shards = directory.listFiles();
+        if (shards == null) {
+            return;
+        }
+        for (File shard : shards) {
+            if (!shard.isDirectory() || shard.getName().length() != SHARD_NAME_LENGTH) {
+                continue;
+            }
+            final File[] files = shard.listFiles();
+            if (files == null) {
+                continue;
+            }
+            synchronized (this) {
+                for (File file : files) {
+                    if (!file.isFile() || !isKey(file.getName()) || entries.containsKey(file.getName())) {
+                        continue;
+                    }
+                    addEntry(new Entry(file.getName(), file.length(), file.lastModified(), 0, null, 0));
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds up the files under {@code folder} that are not entries. Temp files in the shards that
+     * were last modified before {@code staleBefore} are deleted instead.
+     */
+    private long measureAuxiliary(File folder, boolean shard, long staleBefore) {
+        final File[] files = folder.listFiles();
+        if (files == null) {
+            return 0;
+        }
+        long total = 0;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                total += measureAuxiliary(file, folder.equals(directory) && file.getName().length() == SHARD_NAME_LENGTH, staleBefore);
+            } else if (shard && isKey(file.getName())) {
+                continue;
+            } else if (shard && file.getName().endsWith(TEMP_SUFFIX) && file.lastModified() < staleBefore) {
+                FireFileUtils.deleteQuietly(file);
+            } else {
+                total += file.length();
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Whether {@code name} can be a key, as opposed to a temp, partial or journal file.
+     */
+    private static boolean isKey(String name) {
+        if (name.length() != KEY_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.digit(name.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized void scheduleTrim(long delayMillis) {
+        if (trimScheduled || scheduler == null) {
+            return;
+        }
+        final boolean scanDue = System.currentTimeMillis() - auxiliaryScanTime >= AUXILIARY_SCAN_INTERVAL_MILLIS;
+        if (loaded && !scanDue && !isOverLimit(size + auxiliarySize, entries.size())) {
+            return;
+        }
+        trimScheduled = true;
+        scheduler.schedule(trimRunnable, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void scheduleFlush() {
+        if (flushScheduled) {
+            return;
+        }
+        if (scheduler == null) {
+            flushIndex();
+            return;
+        }
+        flushScheduled = true;
+        scheduler.schedule(flushRunnable, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    // guarded by this
+    private void flushIndex() {
+        if (!indexed) {
+            return;
+        }
+        try {
+            indexLog.flush();
+        } catch (IOException e) {
+            indexFailed();
+            return;
+        }
+        if (indexLog.records() > MIN_COMPACTION_RECORDS && indexLog.records() > 2 * entries.size()) {
+            compactIndex();
+        }
+    }
+
+    // guarded by this
+    private void compactIndex() {
+        try {
+            indexLog.rewrite(entries.values());
+            indexed = true;
+        } catch (IOException e) {
+            indexFailed();
+        }
+    }
+
+    // guarded by this
+    private void logPut(Entry entry) {
+        if (!indexed) {
+            return;
+        }
+        try {
+            indexLog.appendPut(entry);
+            indexLog.flush();
+        } catch (IOException e) {
+            indexFailed();
+        }
+    }
+
+    // guarded by this
+    private void logAccess(String key, long lastAccess) {
+        if (!indexed) {
+            return;
+        }
+        try {
+            indexLog.appendAccess(key, lastAccess);
+        } catch (IOException e) {
+            indexFailed();
+            return;
+        }
+        // access records are only batched, losing some to a crash is harmless
+        scheduleFlush();
+    }
+
+    // guarded by this
+    private void logRemove(String key) {
+        if (!indexed) {
+            return;
+        }
+        try {
+            indexLog.appendRemove(key);
+            indexLog.flush();
+        } catch (IOException e) {
+            indexFailed();
+        }
+    }
+
+    /**
+     * The log no longer matches the entries. Drop it and stop logging, so the next start
+     * rebuilds the index from a directory scan, which also finds the files written meanwhile.
+     */
+    private void indexFailed() {
+        indexed = false;
+        indexLog.delete();
+    }
+
+    private boolean isOverLimit(long size, int count) {
+        return (maxBytes > 0 && size > maxBytes) || (maxEntries > 0 && count > maxEntries);
+    }
+
+    private void addEntry(Entry entry) {
+        entries.put(entry.key, entry);
+        size += entry.size;
+    }
+
+    private boolean removeEntry(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.size;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,46 @@
+package com.invisibi.firefile.cache;
+
+import java.util.Comparator;
+
+/**
+ * Orders cache entries by eviction priority: entries that compare lower are evicted first.
+ */
+public interface EvictionPolicy extends Comparator<DiskCache.Entry> {
+
+    /**
+     * Least recently used first.
+     */
+    EvictionPolicy LRU = new EvictionPolicy() {
+        @Override
+        public int compare(DiskCache.Entry lhs, DiskCache.Entry rhs) {
+            return lhs.lastAccess() < rhs.lastAccess() ? -1 : (lhs.lastAccess() == rhs.lastAccess() ? 0 : 1);
+        }
+    };
+
+    /**
+     * Least frequently used first, ties broken by recency.
+     */
+    EvictionPolicy LFU = new EvictionPolicy() {
+        @Override
+        public int compare(DiskCache.Entry lhs, DiskCache.Entry rhs) {
+            if (lhs.accessCount() != rhs.accessCount()) {
+                return lhs.accessCount() < rhs.accessCount() ? -1 : 1;
+            }
+            return LRU.compare(lhs, rhs);
+        }
+    };
+
+    /**
+     * Largest entries first, ties broken by recency. Keeps many small objects (avatars, JSON)
+     * cached at the cost of re-downloading the occasional large one.
+     */
+    EvictionPolicy SIZE = new EvictionPolicy() {
+        @Override
+        public int compare(DiskCache.Entry lhs, DiskCache.Entry rhs) {
+            if (lhs.size() != rhs.size()) {
+                return lhs.size() > rhs.size() ? -1 : 1;
+            }
+            return LRU.compare(lhs, rhs);
+        }
+    };
+}
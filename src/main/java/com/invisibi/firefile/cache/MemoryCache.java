@@ -0,0 +1,97 @@
+package com.invisibi.firefile.cache;
+
+import android.content.ComponentCallbacks2;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Byte-bounded LRU of small object payloads, consulted before the {@link DiskCache}. Payloads
+ * are copied on the way in and out, so no caller can modify what another one reads.
+ */
+public class MemoryCache {
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private long size;
+
+    /**
+     * @param maxBytes      total bytes held by the cache
+     * @param maxEntryBytes payloads larger than this are never cached
+     */
+    public MemoryCache(long maxBytes, long maxEntryBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    public byte[] get(String key) {
+        final byte[] data;
+        synchronized (this) {
+            data = entries.get(key);
+        }
+        return data != null ? data.clone() : null;
+    }
+
+    public void put(String key, byte[] data) {
+        if (data == null || data.length > maxEntryBytes || data.length > maxBytes) {
+            remove(key);
+            return;
+        }
+        store(key, data.clone());
+    }
+
+    private synchronized void store(String key, byte[] data) {
+        byte[] previous = entries.put(key, data);
+        if (previous != null) {
+            size -= previous.length;
+        }
+        size += data.length;
+        trimToSize(maxBytes);
+    }
+
+    public synchronized void remove(String key) {
+        byte[] previous = entries.remove(key);
+        if (previous != null) {
+            size -= previous.length;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public long maxSize() {
+        return maxBytes;
+    }
+
+    /**
+     * Evicts least recently used payloads until at most {@code targetBytes} remain.
+     */
+    public synchronized void trimToSize(long targetBytes) {
+        Iterator<Map.Entry<String, byte[]>> iterator = entries.entrySet().iterator();
+        while (size > targetBytes && iterator.hasNext()) {
+            size -= iterator.next().getValue().length;
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Shrinks the cache for a {@link ComponentCallbacks2#onTrimMemory(int)} level.
+     */
+    public void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            clear();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            trimToSize(maxBytes / 4);
+        } else {
+            trimToSize(maxBytes / 2);
+        }
+    }
+}
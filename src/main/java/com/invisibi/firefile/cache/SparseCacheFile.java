@@ -0,0 +1,217 @@
+package com.invisibi.firefile.cache;
+
+import com.invisibi.firefile.util.FireFileIOUtils;
+import com.invisibi.firefile.util.FireFileUtils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Partially downloaded object: a data file written at the object's own offsets plus a bitmap of
+ * the {@link #BLOCK_SIZE} blocks that are already present. The bitmap is stored next to the data
+ * file together with the object length and ETag it was recorded for.
+ */
+public class SparseCacheFile {
+    public static final int BLOCK_SIZE = 64 * 1024;
+    public static final String DATA_SUFFIX = ".part";
+    public static final String MAP_SUFFIX = ".map";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File dataFile;
+    private final File mapFile;
+    private RandomAccessFile file;
+    private BitSet blocks = new BitSet();
+    private long length = -1;
+    private String eTag;
+
+    public SparseCacheFile(File dataFile, File mapFile) {
+        this.dataFile = dataFile;
+        this.mapFile = mapFile;
+    }
+
+    public File getDataFile() {
+        return dataFile;
+    }
+
+    /**
+     * Loads the block map, if any. Returns {@code false} when the object length is unknown and
+     * {@link #reset(long, String)} has to be called first.
+     */
+    public synchronized boolean load() {
+        if (length >= 0) {
+            return true;
+        }
+        if (!mapFile.isFile() || !dataFile.isFile()) {
+            return false;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(mapFile));
+            final long storedLength = in.readLong();
+            final String storedETag = in.readUTF();
+            final byte[] bits = new byte[in.readInt()];
+            in.readFully(bits);
+            length = storedLength;
+            eTag = storedETag.length() > 0 ? storedETag : null;
+            blocks = fromBytes(bits);
+            return true;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            FireFileIOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Discards all recorded blocks and starts over for an object of the given length.
+     */
+    public synchronized void reset(long length, String eTag) throws IOException {
+        close();
+        FireFileUtils.deleteQuietly(dataFile);
+        this.length = length;
+        this.eTag = eTag;
+        blocks = new BitSet();
+        writeMap();
+    }
+
+    public synchronized long length() {
+        return length;
+    }
+
+    public synchronized String eTag() {
+        return eTag;
+    }
+
+    public synchronized FileChannel channel() throws IOException {
+        if (file == null) {
+            final File parent = dataFile.getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Directory '" + parent + "' could not be created");
+            }
+            file = new RandomAccessFile(dataFile, "rw");
+        }
+        return file.getChannel();
+    }
+
+    /**
+     * Returns the block-aligned ranges, as {@code {offset, length}} pairs, that still have to be
+     * downloaded to cover {@code [offset, offset + length)}.
+     */
+    public synchronized List<long[]> missingRanges(long offset, long length) {
+        final List<long[]> ranges = new ArrayList<>();
+        final long end = Math.min(offset + length, this.length);
+        if (offset >= end) {
+            return ranges;
+        }
+        final int firstBlock = (int) (offset / BLOCK_SIZE);
+        final int lastBlock = (int) ((end - 1) / BLOCK_SIZE);
+        int block = blocks.nextClearBit(firstBlock);
+        while (block <= lastBlock) {
+            int runEnd = blocks.nextSetBit(block);
+            if (runEnd < 0 || runEnd > lastBlock + 1) {
+                runEnd = lastBlock + 1;
+            }
+            final long rangeStart = (long) block * BLOCK_SIZE;
+            final long rangeEnd = Math.min((long) runEnd * BLOCK_SIZE, this.length);
+            ranges.add(new long[]{rangeStart, rangeEnd - rangeStart});
+            block = blocks.nextClearBit(runEnd);
+        }
+        return ranges;
+    }
+
+    /**
+     * Records a downloaded block-aligned range.
+     */
+    public synchronized void markAvailable(long offset, long length) throws IOException {
+        final int firstBlock = (int) (offset / BLOCK_SIZE);
+        final int endBlock = (int) ((Math.min(offset + length, this.length) + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        blocks.set(firstBlock, endBlock);
+        writeMap();
+    }
+
+    public synchronized boolean isComplete() {
+        return length >= 0 && blocks.nextClearBit(0) >= blockCount();
+    }
+
+    public byte[] read(long offset, int length) throws IOException {
+        final FileChannel channel = channel();
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of '" + dataFile + "'");
+            }
+        }
+        return buffer.array();
+    }
+
+    public synchronized void close() {
+        FireFileIOUtils.closeQuietly(file);
+        file = null;
+    }
+
+    /**
+     * Deletes the data file and the block map.
+     */
+    public synchronized void delete() {
+        close();
+        FireFileUtils.deleteQuietly(dataFile);
+        FireFileUtils.deleteQuietly(mapFile);
+        length = -1;
+        blocks = new BitSet();
+    }
+
+    private int blockCount() {
+        return (int) ((length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    /**
+     * Writes the map to a temp file that then replaces the old one, so a crash never leaves a
+     * truncated map behind.
+     */
+    private void writeMap() throws IOException {
+        final byte[] bits = toBytes(blocks, blockCount());
+        final File tempFile = new File(mapFile.getPath() + TEMP_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(FireFileUtils.openOutputStream(tempFile));
+            out.writeLong(length);
+            out.writeUTF(eTag != null ? eTag : "");
+            out.writeInt(bits.length);
+            out.write(bits);
+            out.close();
+        } finally {
+            FireFileIOUtils.closeQuietly(out);
+        }
+        if (!tempFile.renameTo(mapFile)) {
+            FireFileUtils.deleteQuietly(tempFile);
+            throw new IOException("Block map '" + mapFile + "' could not be replaced");
+        }
+    }
+
+    private static byte[] toBytes(BitSet bitSet, int bitCount) {
+        final byte[] bytes = new byte[(bitCount + 7) / 8];
+        for (int i = bitSet.nextSetBit(0); i >= 0 && i < bitCount; i = bitSet.nextSetBit(i + 1)) {
+            bytes[i / 8] |= 1 << (i % 8);
+        }
+        return bytes;
+    }
+
+    private static BitSet fromBytes(byte[] bytes) {
+        final BitSet bitSet = new BitSet(bytes.length * 8);
+        for (int i = 0; i < bytes.length * 8; i++) {
+            if ((bytes[i / 8] & (1 << (i % 8))) != 0) {
+                bitSet.set(i);
+            }
+        }
+        return bitSet;
+    }
+}
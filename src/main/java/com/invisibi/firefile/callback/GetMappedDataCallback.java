@@ -0,0 +1,8 @@
+package com.invisibi.firefile.callback;
+
+import java.nio.MappedByteBuffer;
+
+public interface GetMappedDataCallback extends FireFileCallback2<MappedByteBuffer, Exception> {
+    @Override
+    void done(MappedByteBuffer data, Exception e);
+}
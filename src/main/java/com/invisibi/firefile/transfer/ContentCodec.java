@@ -0,0 +1,119 @@
+package com.invisibi.firefile.transfer;
+
+import com.invisibi.firefile.util.FireFileIOUtils;
+import com.invisibi.firefile.util.FireFileUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip transfer encoding for text-like content. Whether content is compressed is decided from the
+ * file's type, which may be a MIME type or a file extension; media and archive types are
+ * compressed already and are always sent as they are. Compressed objects are stored with
+ * Content-Encoding {@link #GZIP}, which is what tells downloads to decode them.
+ */
+public class ContentCodec {
+    public static final String GZIP = "gzip";
+
+    private static final Set<String> COMPRESSIBLE_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "txt", "log", "json", "ndjson", "csv", "tsv", "xml", "html", "htm", "js", "css", "svg", "md", "yaml", "yml"));
+    private static final Set<String> COMPRESSIBLE_APPLICATION_TYPES = new HashSet<>(Arrays.asList(
+            "json", "xml", "javascript", "x-javascript", "x-ndjson", "x-yaml", "csv"));
+
+    private ContentCodec() {
+        // do nothing
+    }
+
+    /**
+     * @param type a MIME type such as {@code application/json}, or an extension such as {@code log}
+     */
+    public static boolean isCompressible(String type) {
+        if (type == null) {
+            return false;
+        }
+        type = type.toLowerCase(Locale.US);
+        final int parameters = type.indexOf(';');
+        if (parameters >= 0) {
+            type = type.substring(0, parameters).trim();
+        }
+        final int slash = type.indexOf('/');
+        if (slash < 0) {
+            return COMPRESSIBLE_EXTENSIONS.contains(type.startsWith(".") ? type.substring(1) : type);
+        }
+        final String subtype = type.substring(slash + 1);
+        if (type.startsWith("text/")) {
+            return true;
+        }
+        if (subtype.endsWith("+json") || subtype.endsWith("+xml")) {
+            return true;
+        }
+        return type.startsWith("application/") && COMPRESSIBLE_APPLICATION_TYPES.contains(subtype);
+    }
+
+    /**
+     * @return {@code data} gzipped, or {@code null} when that does not make it smaller
+     */
+    public static byte[] encode(byte[] data) throws IOException {
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(32, data.length / 4));
+        final GZIPOutputStream out = new GZIPOutputStream(buffer);
+        out.write(data);
+        out.close();
+        return buffer.size() < data.length ? buffer.toByteArray() : null;
+    }
+
+    /**
+     * Gzips {@code source} into {@code destination}.
+     *
+     * @return whether that made it smaller; if not {@code destination} is deleted
+     */
+    public static boolean encode(File source, File destination) throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = FireFileUtils.openInputStream(source);
+            out = new GZIPOutputStream(FireFileUtils.openOutputStream(destination));
+            FireFileIOUtils.copyLarge(in, out, source.length());
+            out.close();
+        } catch (IOException e) {
+            FireFileIOUtils.closeQuietly(out);
+            FireFileUtils.deleteQuietly(destination);
+            throw e;
+        } finally {
+            FireFileIOUtils.closeQuietly(in);
+        }
+        if (destination.length() < source.length()) {
+            return true;
+        }
+        FireFileUtils.deleteQuietly(destination);
+        return false;
+    }
+
+    /**
+     * Inflates the gzipped {@code source} into {@code destination}.
+     */
+    public static void decode(File source, File destination) throws IOException {
+        InputStream in = null;
+        OutputStream out = null;
+        try {
+            in = new GZIPInputStream(FireFileUtils.openInputStream(source));
+            out = FireFileUtils.openOutputStream(destination);
+            FireFileIOUtils.copyLarge(in, out);
+            out.close();
+        } catch (IOException e) {
+            FireFileIOUtils.closeQuietly(out);
+            FireFileUtils.deleteQuietly(destination);
+            throw e;
+        } finally {
+            FireFileIOUtils.closeQuietly(in);
+        }
+    }
+}
@@ -0,0 +1,547 @@
+package com.invisibi.firefile.transfer;
+
+import com.invisibi.firefile.util.FireFileBufferPool;
+import com.invisibi.firefile.util.FireFileIOUtils;
+import com.invisibi.firefile.util.FireFileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bolts.Continuation;
+import bolts.Task;
+
+/**
+ * In-process object store for loopback benchmarks and tests. Objects live in memory, or under
+ * {@code root} when one is given. Every request can be slowed down by a fixed latency and a
+ * bandwidth limit to approximate a real network.
+ */
+public class LocalTransferBackend implements TransferBackend {
+    private final File root;
+    private final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+    private final Map<String, Long> lastModified = new ConcurrentHashMap<>();
+    private final Map<String, String> eTags = new ConcurrentHashMap<>();
+    private final Map<String, String> contentEncodings = new ConcurrentHashMap<>();
+    private final Map<String, Map<Integer, byte[]>> multipartUploads = new ConcurrentHashMap<>();
+    private final AtomicInteger partFailures = new AtomicInteger();
+    private final ExecutorService executor;
+    private volatile long latencyMillis;
+    private volatile long bytesPerSecond;
+
+    public LocalTransferBackend() {
+        this(null);
+    }
+
+    public LocalTransferBackend(final File root) {
+        this.root = root;
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "FireFile-local-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Delay applied before the first byte of every upload and download.
+     */
+    public LocalTransferBackend setLatency(final long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    /**
+     * Per-transfer bandwidth cap, or 0 for unlimited.
+     */
+    public LocalTransferBackend setBandwidth(final long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Makes the next {@code count} part uploads fail with an {@link IOException}.
+     */
+    public LocalTransferBackend failNextParts(final int count) {
+        partFailures.set(count);
+        return this;
+    }
+
+    /**
+     * @return the number of multipart uploads that were started but neither completed nor aborted
+     */
+    public int pendingMultipartUploads() {
+        return multipartUploads.size();
+    }
+
+    public void put(final String key, final byte[] data) throws IOException {
+        if (root == null) {
+            objects.put(key, data);
+        } else {
+            FireFileUtils.writeByteArrayToFile(new File(root, key), data);
+        }
+        stored(key);
+    }
+
+    /**
+     * @return the Content-Encoding the object was uploaded with, or {@code null}
+     */
+    public String getContentEncoding(final String key) {
+        return contentEncodings.get(key);
+    }
+
+    private void stored(final String key) {
+        eTags.remove(key);
+        contentEncodings.remove(key);
+        lastModified.put(key, System.currentTimeMillis());
+    }
+
+    public boolean contains(final String key) {
+        return root == null ? objects.containsKey(key) : new File(root, key).isFile();
+    }
+
+    public void clear() {
+        objects.clear();
+        eTags.clear();
+        contentEncodings.clear();
+        lastModified.clear();
+        if (root != null && root.exists()) {
+            try {
+                FireFileUtils.cleanDirectory(root);
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public Task<Void> upload(final String key, final File file, final ProgressListener progressListener, final Task<Void> cancellationToken) {
+        return Task.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                awaitLatency(cancellationToken);
+                InputStream in = null;
+                try {
+                    in = FireFileUtils.openInputStream(file);
+                    store(key, in, file.length(), progressListener, cancellationToken);
+                } finally {
+                    FireFileIOUtils.closeQuietly(in);
+                }
+                return null;
+            }
+        }, executor);
+    }
+
+    @Override
+    public Task<Void> upload(final String key, final InputStream input, final long length, final String contentEncoding, final ProgressListener progressListener,
+                             final Task<Void> cancellationToken) {
+        return Task.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                awaitLatency(cancellationToken);
+                store(key, input, length, progressListener, cancellationToken);
+                if (contentEncoding != null) {
+                    contentEncodings.put(key, contentEncoding);
+                }
+                return null;
+            }
+        }, executor);
+    }
+
+    @Override
+    public Task<Void> download(final String key, final File destination, final ProgressListener progressListener, final Task<Void> cancellationToken) {
+        return Task.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                awaitLatency(cancellationToken);
+                InputStream in = null;
+                OutputStream out = null;
+                try {
+                    long length;
+                    if (root == null) {
+                        byte[] data = objects.get(key);
+                        if (data == null) {
+                            throw new FileNotFoundException("Object '" + key + "' does not exist");
+                        }
+                        in = new ByteArrayInputStream(data);
+                        length = data.length;
+                    } else {
+                        File source = new File(root, key);
+                        in = FireFileUtils.openInputStream(source);
+                        length = source.length();
+                    }
+                    out = FireFileUtils.openOutputStream(destination);
+                    transfer(in, out, length, progressListener, cancellationToken);
+                } finally {
+                    FireFileIOUtils.closeQuietly(out);
+                    FireFileIOUtils.closeQuietly(in);
+                }
+                return null;
+            }
+        }, executor);
+    }
+
+    @Override
+    public Task<ObjectInfo> head(final String key, final Task<Void> cancellationToken) {
+        return Task.call(new Callable<ObjectInfo>() {
+            @Override
+            public ObjectInfo call() throws Exception {
+                awaitLatency(cancellationToken);
+                return info(key);
+            }
+        }, executor);
+    }
+
+    private ObjectInfo info(final String key) throws IOException {
+        final long length;
+        long modified;
+        if (root == null) {
+            byte[] data = objects.get(key);
+            if (data == null) {
+                throw new FileNotFoundException("Object '" + key + "' does not exist");
+            }
+            length = data.length;
+            Long time = lastModified.get(key);
+            modified = time != null ? time : 0;
+        } else {
+            File source = new File(root, key);
+            if (!source.isFile()) {
+                throw new FileNotFoundException("Object '" + key + "' does not exist");
+            }
+            length = source.length();
+            modified = source.lastModified();
+        }
+        return new ObjectInfo(length, eTag(key), modified, contentEncodings.get(key));
+    }
+
+    @Override
+    public Task<ObjectInfo> downloadIfModified(final String key, final File destination, final String eTag, final ProgressListener progressListener,
+                                               final Task<Void> cancellationToken) {
+        return head(key, cancellationToken).onSuccessTask(new Continuation<ObjectInfo, Task<ObjectInfo>>() {
+            @Override
+            public Task<ObjectInfo> then(Task<ObjectInfo> task) throws Exception {
+                final ObjectInfo info = task.getResult();
+                if (eTag != null && eTag.equals(info.eTag())) {
+                    return Task.forResult(null);
+                }
+                return download(key, destination, progressListener, cancellationToken).onSuccess(new Continuation<Void, ObjectInfo>() {
+                    @Override
+                    public ObjectInfo then(Task<Void> task) throws Exception {
+                        return info;
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public Task<Void> downloadRange(final String key, final long offset, final long length, final String eTag, final FileChannel destination,
+                                    final ProgressListener progressListener, final Task<Void> cancellationToken) {
+        return Task.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                awaitLatency(cancellationToken);
+                if (eTag != null && !eTag.equals(eTag(key))) {
+                    throw new ObjectChangedException(key, eTag);
+                }
+                transferRange(key, offset, length, destination, progressListener, cancellationToken);
+                return null;
+            }
+        }, executor);
+    }
+
+    @Override
+    public Task<ObjectInfo> downloadPrefix(final String key, final long length, final FileChannel destination, final ObjectInfoListener infoListener,
+                                           final ProgressListener progressListener, final Task<Void> cancellationToken) {
+        return Task.call(new Callable<ObjectInfo>() {
+            @Override
+            public ObjectInfo call() throws Exception {
+                awaitLatency(cancellationToken);
+                final ObjectInfo info = info(key);
+                if (infoListener != null) {
+                    infoListener.onObjectInfo(info);
+                }
+                transferRange(key, 0, Math.min(length, info.length()), destination, progressListener, cancellationToken);
+                return info;
+            }
+        }, executor);
+    }
+
+    private void transferRange(final String key, final long offset, final long length, final FileChannel destination,
+                               final ProgressListener progressListener, final Task<Void> cancellationToken) throws IOException, InterruptedException {
+        InputStream in = null;
+        final byte[] buffer = FireFileBufferPool.acquire(length);
+        try {
+            in = openRange(key, offset, length);
+            final long start = System.nanoTime();
+            long transferred = 0;
+            int n;
+            while (transferred < length && (n = in.read(buffer, 0, (int) Math.min(buffer.length, length - transferred))) != -1) {
+                checkCancelled(cancellationToken);
+                final ByteBuffer source = ByteBuffer.wrap(buffer, 0, n);
+                while (source.hasRemaining()) {
+                    destination.write(source, offset + transferred + source.position());
+                }
+                transferred += n;
+                throttle(start, transferred);
+                if (progressListener != null) {
+                    progressListener.onProgress(transferred, length);
+                }
+            }
+            if (transferred < length) {
+                throw new IOException("Expected " + length + " bytes at offset " + offset + " but got " + transferred);
+            }
+        } finally {
+            FireFileIOUtils.closeQuietly(in);
+            FireFileBufferPool.release(buffer);
+        }
+    }
+
+    @Override
+    public Task<String> initiateMultipartUpload(final String key, final Task<Void> cancellationToken) {
+        return Task.call(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                awaitLatency(cancellationToken);
+                final String uploadId = UUID.randomUUID().toString();
+                multipartUploads.put(uploadId, new ConcurrentHashMap<Integer, byte[]>());
+                return uploadId;
+            }
+        }, executor);
+    }
+
+    @Override
+    public Task<String> uploadPart(final String key, final String uploadId, final int partNumber, final File file, final long offset, final long length,
+                                   final ProgressListener progressListener, final Task<Void> cancellationToken) {
+        return Task.call(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                awaitLatency(cancellationToken);
+                final Map<Integer, byte[]> parts = multipartUploads.get(uploadId);
+                if (parts == null) {
+                    throw new FileNotFoundException("Multipart upload '" + uploadId + "' does not exist");
+                }
+                if (partFailures.get() > 0 && partFailures.getAndDecrement() > 0) {
+                    throw new IOException("Injected failure of part " + partNumber);
+                }
+                InputStream in = null;
+                try {
+                    in = FireFileUtils.openInputStream(file);
+                    FireFileIOUtils.skipFully(in, offset);
+                    final ByteArrayOutputStream out = new ByteArrayOutputStream((int) length);
+                    transfer(new BoundedStream(in, length), out, length, progressListener, cancellationToken);
+                    final byte[] part = out.toByteArray();
+                    parts.put(partNumber, part);
+                    return md5(new ByteArrayInputStream(part));
+                } finally {
+                    FireFileIOUtils.closeQuietly(in);
+                }
+            }
+        }, executor);
+    }
+
+    @Override
+    public Task<Void> completeMultipartUpload(final String key, final String uploadId, final List<String> partETags, final Task<Void> cancellationToken) {
+        return Task.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                awaitLatency(cancellationToken);
+                final Map<Integer, byte[]> parts = multipartUploads.remove(uploadId);
+                if (parts == null) {
+                    throw new FileNotFoundException("Multipart upload '" + uploadId + "' does not exist");
+                }
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                for (int i = 1; i <= partETags.size(); i++) {
+                    final byte[] part = parts.get(i);
+                    if (part == null) {
+                        throw new IOException("Part " + i + " of '" + key + "' is missing");
+                    }
+                    out.write(part);
+                }
+                put(key, out.toByteArray());
+                return null;
+            }
+        }, executor);
+    }
+
+    @Override
+    public Task<Void> abortMultipartUpload(final String key, final String uploadId) {
+        multipartUploads.remove(uploadId);
+        return Task.forResult(null);
+    }
+
+    private InputStream openRange(final String key, final long offset, final long length) throws IOException {
+        if (root == null) {
+            byte[] data = objects.get(key);
+            if (data == null) {
+                throw new FileNotFoundException("Object '" + key + "' does not exist");
+            }
+            final int from = (int) Math.min(offset, data.length);
+            return new ByteArrayInputStream(data, from, (int) Math.min(length, data.length - from));
+        }
+        final InputStream in = FireFileUtils.openInputStream(new File(root, key));
+        FireFileIOUtils.skipFully(in, offset);
+        return in;
+    }
+
+    private String eTag(final String key) throws IOException {
+        String eTag = eTags.get(key);
+        if (eTag != null) {
+            return eTag;
+        }
+        InputStream in = null;
+        try {
+            in = root == null ? new ByteArrayInputStream(objects.get(key)) : FireFileUtils.openInputStream(new File(root, key));
+            eTag = md5(in);
+        } finally {
+            FireFileIOUtils.closeQuietly(in);
+        }
+        eTags.put(key, eTag);
+        return eTag;
+    }
+
+    private static String md5(final InputStream in) throws IOException {
+        final byte[] buffer = FireFileBufferPool.acquire(FireFileBufferPool.UNKNOWN_SIZE);
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+            return FireFileUtils.toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            FireFileBufferPool.release(buffer);
+        }
+    }
+
+    private void store(final String key, final InputStream in, final long length,
+                       final ProgressListener progressListener, final Task<Void> cancellationToken) throws IOException, InterruptedException {
+        if (root == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) length);
+            transfer(in, out, length, progressListener, cancellationToken);
+            objects.put(key, out.toByteArray());
+        } else {
+            final File target = new File(root, key);
+            final File temp = new File(root, key + ".tmp");
+            OutputStream out = null;
+            try {
+                out = FireFileUtils.openOutputStream(temp);
+                transfer(in, out, length, progressListener, cancellationToken);
+            } finally {
+                FireFileIOUtils.closeQuietly(out);
+            }
+            FireFileUtils.deleteQuietly(target);
+            FireFileUtils.moveFile(temp, target);
+        }
+        stored(key);
+    }
+
+    private void awaitLatency(final Task<Void> cancellationToken) throws InterruptedException {
+        checkCancelled(cancellationToken);
+        if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+        }
+        checkCancelled(cancellationToken);
+    }
+
+    private void transfer(final InputStream in, final OutputStream out, final long length,
+                          final ProgressListener progressListener, final Task<Void> cancellationToken) throws IOException, InterruptedException {
+        final byte[] buffer = FireFileBufferPool.acquire(length);
+        try {
+            final long start = System.nanoTime();
+            long transferred = 0;
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                checkCancelled(cancellationToken);
+                out.write(buffer, 0, n);
+                transferred += n;
+                throttle(start, transferred);
+                if (progressListener != null) {
+                    progressListener.onProgress(transferred, length);
+                }
+            }
+            out.flush();
+        } finally {
+            FireFileBufferPool.release(buffer);
+        }
+    }
+
+    private void throttle(final long startNanos, final long transferred) throws InterruptedException {
+        final long limit = bytesPerSecond;
+        if (limit <= 0) {
+            return;
+        }
+        final long expectedMillis = transferred * 1000 / limit;
+        final long elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+        if (expectedMillis > elapsedMillis) {
+            Thread.sleep(expectedMillis - elapsedMillis);
+        }
+    }
+
+    private static class BoundedStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedStream(InputStream in, long length) {
+            super(in);
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int b = super.read();
+            if (b >= 0) {
+                remaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            final int n = super.read(buffer, offset, (int) Math.min(count, remaining));
+            if (n > 0) {
+                remaining -= n;
+            }
+            return n;
+        }
+    }
+
+    private static void checkCancelled(final Task<Void> cancellationToken) {
+        if (cancellationToken != null && cancellationToken.isCancelled()) {
+            throw new CancellationException();
+        }
+    }
+}
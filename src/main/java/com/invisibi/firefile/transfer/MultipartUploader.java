@@ -0,0 +1,272 @@
+package com.invisibi.firefile.transfer;
+
+import com.invisibi.firefile.util.FireFileUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import bolts.Continuation;
+import bolts.Task;
+
+/**
+ * Uploads a file as a multipart upload of {@code partSize} parts, {@code parallelism} of them at
+ * a time. A failed part is retried on its own, with exponential backoff, up to
+ * {@code maxRetries} times before the whole upload is aborted.
+ * <p>
+ * With a {@link TransferJournal}, uploads given a journal id record their upload id and finished
+ * parts instead. A failed upload is then left open on the server, and the next upload of the same
+ * id only sends the remaining parts. A cancelled upload is always aborted, and so is a journaled
+ * one that a new upload of the same id replaces. An upload the server no longer knows fails
+ * without retries; when it was resumed, it is started over as a new upload.
+ */
+public class MultipartUploader {
+    /**
+     * Smallest part S3 accepts for every part but the last.
+     */
+    public static final long MIN_PART_SIZE = 5 * FireFileUtils.ONE_MB;
+
+    private static final long RETRY_BACKOFF_MILLIS = 500;
+
+    private final TransferBackend transferBackend;
+    private final long partSize;
+    private final int parallelism;
+    private final int maxRetries;
+    private final TransferJournal journal;
+
+    public MultipartUploader(final TransferBackend transferBackend, final long partSize, final int parallelism, final int maxRetries) {
+        this(transferBackend, partSize, parallelism, maxRetries, null);
+    }
+
+    public MultipartUploader(final TransferBackend transferBackend, final long partSize, final int parallelism, final int maxRetries, final TransferJournal journal) {
+        this.transferBackend = transferBackend;
+        this.journal = journal;
+        this.partSize = Math.max(partSize, MIN_PART_SIZE);
+        this.parallelism = Math.max(parallelism, 1);
+        this.maxRetries = Math.max(maxRetries, 0);
+    }
+
+    public long getPartSize() {
+        return partSize;
+    }
+
+    public Task<Void> upload(final String key, final File file, final TransferBackend.ProgressListener progressListener, final Task<Void> cancellationToken) {
+        return upload(key, file, null, progressListener, cancellationToken);
+    }
+
+    /**
+     * @param journalId identifies the upload across restarts, or {@code null} to not journal it
+     */
+    public Task<Void> upload(final String key, final File file, final String journalId,
+                             final TransferBackend.ProgressListener progressListener, final Task<Void> cancellationToken) {
+        if (journal != null && journalId != null) {
+            final TransferJournal.Entry entry = journal.get(journalId);
+            if (entry != null && entry.uploadId() != null && key.equals(entry.objectKey())
+                    && entry.length() == file.length() && entry.partSize() == partSize) {
+                return new Upload(key, entry.uploadId(), file, journalId, entry, progressListener, cancellationToken).start()
+                        .continueWithTask(new Continuation<Void, Task<Void>>() {
+                            @Override
+                            public Task<Void> then(Task<Void> task) throws Exception {
+                                if (task.isFaulted() && task.getError() instanceof FileNotFoundException) {
+                                    // dropped by the server meanwhile, the journal entry is gone too
+                                    return uploadNew(key, file, journalId, progressListener, cancellationToken);
+                                }
+                                return task;
+                            }
+                        });
+            }
+        }
+        return uploadNew(key, file, journalId, progressListener, cancellationToken);
+    }
+
+    private Task<Void> uploadNew(final String key, final File file, final String journalId,
+                                 final TransferBackend.ProgressListener progressListener, final Task<Void> cancellationToken) {
+        return transferBackend.initiateMultipartUpload(key, cancellationToken).onSuccessTask(new Continuation<String, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<String> task) throws Exception {
+                TransferJournal.Entry entry = null;
+                if (journal != null && journalId != null) {
+                    final TransferJournal.Entry superseded = journal.get(journalId);
+                    if (superseded != null && superseded.uploadId() != null) {
+                        // would otherwise stay open on the server with nothing left to resume it
+                        transferBackend.abortMultipartUpload(superseded.objectKey(), superseded.uploadId());
+                    }
+                    entry = new TransferJournal.Entry(key, null, file.length(), partSize).uploadId(task.getResult());
+                    journal.put(journalId, entry);
+                }
+                return new Upload(key, task.getResult(), file, journalId, entry, progressListener, cancellationToken).start();
+            }
+        });
+    }
+
+    /**
+     * @return the object key of the journaled upload {@code journalId}, or {@code null}
+     */
+    public String getJournaledKey(final String journalId) {
+        if (journal == null) {
+            return null;
+        }
+        final TransferJournal.Entry entry = journal.get(journalId);
+        return entry != null && entry.uploadId() != null ? entry.objectKey() : null;
+    }
+
+    private class Upload {
+        private final String key;
+        private final String uploadId;
+        private final File file;
+        private final long length;
+        private final int partCount;
+        private final TransferBackend.ProgressListener progressListener;
+        private final Task<Void> cancellationToken;
+        private final String journalId;
+        private final TransferJournal.Entry entry;
+        private final String[] partETags;
+        private final AtomicInteger nextPart = new AtomicInteger(1);
+        private final AtomicLongArray partProgress;
+        private final AtomicLong transferred = new AtomicLong();
+        private volatile Exception error;
+
+        Upload(String key, String uploadId, File file, String journalId, TransferJournal.Entry entry,
+               TransferBackend.ProgressListener progressListener, Task<Void> cancellationToken) {
+            this.key = key;
+            this.journalId = journalId;
+            this.entry = entry;
+            this.uploadId = uploadId;
+            this.file = file;
+            this.progressListener = progressListener;
+            this.cancellationToken = cancellationToken;
+            length = file.length();
+            partCount = (int) Math.max(1, (length + partSize - 1) / partSize);
+            partETags = new String[partCount];
+            partProgress = new AtomicLongArray(partCount);
+            if (entry != null) {
+                for (int partNumber = 1; partNumber <= partCount; partNumber++) {
+                    partETags[partNumber - 1] = entry.part(partNumber);
+                }
+            }
+        }
+
+        Task<Void> start() {
+            final List<Task<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < Math.min(parallelism, partCount); i++) {
+                workers.add(uploadNextPart());
+            }
+            return Task.whenAll(workers).continueWithTask(new Continuation<Void, Task<Void>>() {
+                @Override
+                public Task<Void> then(Task<Void> task) throws Exception {
+                    if (error != null || isCancelled()) {
+                        if (entry == null || isCancelled() || error instanceof FileNotFoundException) {
+                            // not resumable, not wanted any more, or the server already dropped the upload
+                            abort();
+                        }
+                        return error != null ? Task.<Void>forError(error) : Task.<Void>cancelled();
+                    }
+                    return transferBackend.completeMultipartUpload(key, uploadId, Arrays.asList(partETags), cancellationToken)
+                            .continueWithTask(new Continuation<Void, Task<Void>>() {
+                                @Override
+                                public Task<Void> then(Task<Void> task) throws Exception {
+                                    if (task.isCancelled() || isCancelled()) {
+                                        abort();
+                                    } else if (!task.isFaulted() || task.getError() instanceof FileNotFoundException) {
+                                        forget();
+                                    }
+                                    return task;
+                                }
+                            });
+                }
+            });
+        }
+
+        private void forget() {
+            if (entry != null) {
+                journal.remove(journalId);
+            }
+        }
+
+        private void abort() {
+            forget();
+            transferBackend.abortMultipartUpload(key, uploadId);
+        }
+
+        /**
+         * Claims the next pending part and keeps going until every part is taken or the upload
+         * has failed.
+         */
+        private Task<Void> uploadNextPart() {
+            if (error != null || isCancelled()) {
+                return Task.forResult(null);
+            }
+            int partNumber = nextPart.getAndIncrement();
+            while (partNumber <= partCount && partETags[partNumber - 1] != null) {
+                // finished before the upload was interrupted
+                onPartProgress(partNumber, Math.min(partSize, length - (partNumber - 1) * partSize));
+                partNumber = nextPart.getAndIncrement();
+            }
+            if (partNumber > partCount) {
+                return Task.forResult(null);
+            }
+            final int claimedPart = partNumber;
+            return uploadPart(claimedPart, 0).continueWithTask(new Continuation<String, Task<Void>>() {
+                @Override
+                public Task<Void> then(Task<String> task) throws Exception {
+                    if (task.isFaulted()) {
+                        error = task.getError();
+                        return Task.forResult(null);
+                    }
+                    if (task.isCancelled()) {
+                        return Task.forResult(null);
+                    }
+                    partETags[claimedPart - 1] = task.getResult();
+                    if (entry != null) {
+                        entry.completePart(claimedPart, task.getResult());
+                        journal.put(journalId, entry);
+                    }
+                    return uploadNextPart();
+                }
+            });
+        }
+
+        private Task<String> uploadPart(final int partNumber, final int attempt) {
+            final long offset = (partNumber - 1) * partSize;
+            final long partLength = Math.min(partSize, length - offset);
+            onPartProgress(partNumber, 0);
+            return transferBackend.uploadPart(key, uploadId, partNumber, file, offset, partLength, new TransferBackend.ProgressListener() {
+                @Override
+                public void onProgress(long bytesCurrent, long bytesTotal) {
+                    onPartProgress(partNumber, bytesCurrent);
+                }
+            }, cancellationToken).continueWithTask(new Continuation<String, Task<String>>() {
+                @Override
+                public Task<String> then(final Task<String> task) throws Exception {
+                    if (!task.isFaulted() || task.getError() instanceof FileNotFoundException || attempt >= maxRetries || error != null
+                            || isCancelled()) {
+                        return task;
+                    }
+                    return Task.delay(RETRY_BACKOFF_MILLIS << attempt).continueWithTask(new Continuation<Void, Task<String>>() {
+                        @Override
+                        public Task<String> then(Task<Void> ignored) throws Exception {
+                            return uploadPart(partNumber, attempt + 1);
+                        }
+                    });
+                }
+            });
+        }
+
+        private void onPartProgress(final int partNumber, final long bytesCurrent) {
+            final long delta = bytesCurrent - partProgress.getAndSet(partNumber - 1, bytesCurrent);
+            final long total = transferred.addAndGet(delta);
+            if (progressListener != null && delta != 0) {
+                progressListener.onProgress(total, length);
+            }
+        }
+
+        private boolean isCancelled() {
+            return cancellationToken != null && cancellationToken.isCancelled();
+        }
+    }
+}
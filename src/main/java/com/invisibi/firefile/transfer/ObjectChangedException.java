@@ -0,0 +1,13 @@
+package com.invisibi.firefile.transfer;
+
+import java.io.IOException;
+
+/**
+ * Thrown by a request that was made for one version of an object, identified by its ETag, when
+ * the store holds another version by now.
+ */
+public class ObjectChangedException extends IOException {
+    public ObjectChangedException(String key, String eTag) {
+        super("Object '" + key + "' is no longer at version " + eTag);
+    }
+}
@@ -0,0 +1,45 @@
+package com.invisibi.firefile.transfer;
+
+/**
+ * Metadata of a stored object, as returned by {@link TransferBackend#head} or along with a download.
+ */
+public class ObjectInfo {
+    private final long length;
+    private final String eTag;
+    private final long lastModified;
+    private final String contentEncoding;
+
+    public ObjectInfo(long length, String eTag, long lastModified) {
+        this(length, eTag, lastModified, null);
+    }
+
+    public ObjectInfo(long length, String eTag, long lastModified, String contentEncoding) {
+        this.length = length;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.contentEncoding = contentEncoding;
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public String eTag() {
+        return eTag;
+    }
+
+    /**
+     * @return milliseconds since the epoch, or 0 when unknown
+     */
+    public long lastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the Content-Encoding the object was stored with, e.g. {@link ContentCodec#GZIP}, or
+     * {@code null} when its bytes are the content itself; {@link #length()} counts encoded bytes
+     */
+    public String contentEncoding() {
+        return contentEncoding;
+    }
+}
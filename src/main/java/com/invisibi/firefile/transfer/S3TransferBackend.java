@@ -0,0 +1,502 @@
+package com.invisibi.firefile.transfer;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.auth.CognitoCachingCredentialsProvider;
+import com.amazonaws.event.ProgressEvent;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferListener;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferObserver;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferState;
+import com.amazonaws.mobileconnectors.s3.transferutility.TransferUtility;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.invisibi.firefile.FireFileExecutors;
+import com.invisibi.firefile.util.FireFileBufferPool;
+import com.invisibi.firefile.util.FireFileIOUtils;
+import com.invisibi.firefile.util.FireFileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+
+import bolts.Continuation;
+import bolts.Task;
+import bolts.TaskCompletionSource;
+
+/**
+ * {@link TransferBackend} on top of the AWS {@link TransferUtility}. Requests the utility does
+ * not cover (metadata, byte ranges) go through the {@link AmazonS3} client directly.
+ */
+public class S3TransferBackend implements TransferBackend {
+    private final AmazonS3 s3;
+    private final TransferUtility transferUtility;
+    private final String s3Bucket;
+
+    public S3TransferBackend(final Context context, final String awsIdentityPoolId, final Regions s3Regions, final String s3Bucket) {
+        this(context, new AmazonS3Client(new CognitoCachingCredentialsProvider(context, awsIdentityPoolId, s3Regions)), s3Bucket);
+    }
+
+    public S3TransferBackend(final Context context, final AmazonS3 s3, final String s3Bucket) {
+        this.s3 = s3;
+        this.s3Bucket = s3Bucket;
+        transferUtility = new TransferUtility(s3, context);
+    }
+
+    @Override
+    public Task<Void> upload(final String key, final File file, final ProgressListener progressListener, final Task<Void> cancellationToken) {
+        final TaskCompletionSource<Void> taskCompletionSource = new TaskCompletionSource<>();
+        final TransferObserver observer = transferUtility.upload(s3Bucket, key, file, CannedAccessControlList.PublicReadWrite);
+        observer.setTransferListener(new TransferListener() {
+            @Override
+            public void onStateChanged(final int id, final TransferState transferState) {
+                switch (transferState) {
+                    case COMPLETED:
+                        taskCompletionSource.trySetResult(null);
+                        break;
+                    case CANCELED:
+                        taskCompletionSource.trySetCancelled();
+                        break;
+                    case FAILED:
+                        taskCompletionSource.trySetError(new Exception("Upload FFile fail"));
+                        break;
+                }
+            }
+
+            @Override
+            public void onProgressChanged(final int id, final long bytesCurrent, final long bytesTotal) {
+                if (progressListener != null) {
+                    progressListener.onProgress(bytesCurrent, bytesTotal);
+                }
+            }
+
+            @Override
+            public void onError(final int id, final Exception ex) {
+                taskCompletionSource.trySetError(ex);
+            }
+        });
+        cancelOnCancellation(observer, cancellationToken);
+        return taskCompletionSource.getTask();
+    }
+
+    @Override
+    public Task<Void> upload(final String key, final InputStream input, final long length, final String contentEncoding, final ProgressListener progressListener,
+                             final Task<Void> cancellationToken) {
+        return Task.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                checkCancelled(cancellationToken);
+                final ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentLength(length);
+                if (contentEncoding != null) {
+                    metadata.setContentEncoding(contentEncoding);
+                }
+                final PutObjectRequest request = new PutObjectRequest(s3Bucket, key, new CancellableInputStream(input, cancellationToken), metadata)
+                        .withCannedAcl(CannedAccessControlList.PublicReadWrite);
+                if (progressListener != null) {
+                    request.setGeneralProgressListener(new com.amazonaws.event.ProgressListener() {
+                        private long transferred;
+
+                        @Override
+                        public void progressChanged(ProgressEvent progressEvent) {
+                            transferred += progressEvent.getBytesTransferred();
+                            progressListener.onProgress(Math.min(transferred, length), length);
+                        }
+                    });
+                }
+                try {
+                    s3.putObject(request);
+                } catch (AmazonClientException e) {
+                    // the client may wrap the exception the stream threw on cancellation
+                    checkCancelled(cancellationToken);
+                    throw e;
+                }
+                return null;
+            }
+        }, FireFileExecutors.network(FireFileExecutors.Priority.SAVE));
+    }
+
+    @Override
+    public Task<Void> download(final String key, final File destination, final ProgressListener progressListener, final Task<Void> cancellationToken) {
+        final TaskCompletionSource<Void> taskCompletionSource = new TaskCompletionSource<>();
+        final TransferObserver observer = transferUtility.download(s3Bucket, key, destination);
+        observer.setTransferListener(new TransferListener() {
+            @Override
+            public void onStateChanged(final int id, final TransferState transferState) {
+                switch (transferState) {
+                    case COMPLETED:
+                        taskCompletionSource.trySetResult(null);
+                        break;
+                    case CANCELED:
+                        taskCompletionSource.trySetCancelled();
+                        break;
+                    case FAILED:
+                        taskCompletionSource.trySetError(new Exception("Download FFile fail"));
+                        break;
+                }
+            }
+
+            @Override
+            public void onProgressChanged(final int id, final long bytesCurrent, final long bytesTotal) {
+                if (progressListener != null) {
+                    progressListener.onProgress(bytesCurrent, bytesTotal);
+                }
+            }
+
+            @Override
+            public void onError(final int id, final Exception ex) {
+                Log.d(S3TransferBackend.class.getSimpleName(), "error:" + ex.getLocalizedMessage());
+            }
+        });
+        cancelOnCancellation(observer, cancellationToken);
+        return taskCompletionSource.getTask();
+    }
+
+    @Override
+    public Task<ObjectInfo> head(final String key, final Task<Void> cancellationToken) {
+        return Task.call(new Callable<ObjectInfo>() {
+            @Override
+            public ObjectInfo call() throws Exception {
+                checkCancelled(cancellationToken);
+                return headObject(key);
+            }
+        }, FireFileExecutors.network(FireFileExecutors.Priority.FETCH));
+    }
+
+    private ObjectInfo headObject(final String key) throws Exception {
+        final ObjectMetadata metadata;
+        try {
+            metadata = s3.getObjectMetadata(s3Bucket, key);
+        } catch (AmazonS3Exception e) {
+            throw translateNotFound(e, key);
+        }
+        return info(metadata, metadata.getContentLength());
+    }
+
+    private static ObjectInfo info(final ObjectMetadata metadata, final long length) {
+        return new ObjectInfo(length, metadata.getETag(), metadata.getLastModified() != null ? metadata.getLastModified().getTime() : 0,
+                metadata.getContentEncoding());
+    }
+
+    @Override
+    public Task<ObjectInfo> downloadIfModified(final String key, final File destination, final String eTag, final ProgressListener progressListener,
+                                               final Task<Void> cancellationToken) {
+        return Task.call(new Callable<ObjectInfo>() {
+            @Override
+            public ObjectInfo call() throws Exception {
+                checkCancelled(cancellationToken);
+                final GetObjectRequest request = new GetObjectRequest(s3Bucket, key);
+                if (eTag != null) {
+                    request.setNonmatchingETagConstraints(Collections.singletonList(eTag));
+                }
+                // null when the constraint is not met, i.e. on a 304
+                final S3Object object = s3.getObject(request);
+                if (object == null) {
+                    return null;
+                }
+                final ObjectMetadata metadata = object.getObjectMetadata();
+                InputStream in = null;
+                FileOutputStream out = null;
+                try {
+                    in = object.getObjectContent();
+                    out = FireFileUtils.openOutputStream(destination);
+                    copy(in, out.getChannel(), 0, metadata.getContentLength(), progressListener, cancellationToken);
+                } finally {
+                    FireFileIOUtils.closeQuietly(out);
+                    FireFileIOUtils.closeQuietly(in);
+                }
+                return info(metadata, metadata.getContentLength());
+            }
+        }, FireFileExecutors.network(FireFileExecutors.Priority.FETCH));
+    }
+
+    @Override
+    public Task<Void> downloadRange(final String key, final long offset, final long length, final String eTag, final FileChannel destination,
+                                    final ProgressListener progressListener, final Task<Void> cancellationToken) {
+        return Task.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                checkCancelled(cancellationToken);
+                final GetObjectRequest request = new GetObjectRequest(s3Bucket, key).withRange(offset, offset + length - 1);
+                if (eTag != null) {
+                    request.setMatchingETagConstraints(Collections.singletonList(eTag));
+                }
+                // null when the constraint is not met, i.e. on a 412
+                final S3Object object = s3.getObject(request);
+                if (object == null) {
+                    throw new ObjectChangedException(key, eTag);
+                }
+                InputStream in = null;
+                try {
+                    in = object.getObjectContent();
+                    copy(in, destination, offset, length, progressListener, cancellationToken);
+                } finally {
+                    FireFileIOUtils.closeQuietly(in);
+                }
+                return null;
+            }
+        }, FireFileExecutors.network(FireFileExecutors.Priority.FETCH));
+    }
+
+    @Override
+    public Task<ObjectInfo> downloadPrefix(final String key, final long length, final FileChannel destination, final ObjectInfoListener infoListener,
+                                           final ProgressListener progressListener, final Task<Void> cancellationToken) {
+        return Task.call(new Callable<ObjectInfo>() {
+            @Override
+            public ObjectInfo call() throws Exception {
+                checkCancelled(cancellationToken);
+                final S3Object object;
+                try {
+                    object = s3.getObject(new GetObjectRequest(s3Bucket, key).withRange(0, length - 1));
+                } catch (AmazonS3Exception e) {
+                    if (e.getStatusCode() == 416) {
+                        // an empty object has no range to return
+                        final ObjectInfo info = headObject(key);
+                        if (infoListener != null) {
+                            infoListener.onObjectInfo(info);
+                        }
+                        return info;
+                    }
+                    throw translateNotFound(e, key);
+                }
+                final ObjectMetadata metadata = object.getObjectMetadata();
+                final ObjectInfo info = info(metadata, objectLength(metadata));
+                InputStream in = null;
+                try {
+                    in = object.getObjectContent();
+                    if (infoListener != null) {
+                        infoListener.onObjectInfo(info);
+                    }
+                    copy(in, destination, 0, metadata.getContentLength(), progressListener, cancellationToken);
+                } finally {
+                    FireFileIOUtils.closeQuietly(in);
+                }
+                return info;
+            }
+        }, FireFileExecutors.network(FireFileExecutors.Priority.FETCH));
+    }
+
+    /**
+     * The length of the whole object a ranged response belongs to, from its Content-Range
+     * ("bytes 0-1023/4096"), or the length of the response itself when it is not partial.
+     */
+    private static long objectLength(final ObjectMetadata metadata) {
+        final Object contentRange = metadata.getRawMetadataValue("Content-Range");
+        if (contentRange != null) {
+            final String value = contentRange.toString();
+            final int slash = value.lastIndexOf('/');
+            if (slash >= 0 && slash < value.length() - 1 && value.charAt(slash + 1) != '*') {
+                return Long.parseLong(value.substring(slash + 1).trim());
+            }
+        }
+        return metadata.getContentLength();
+    }
+
+    @Override
+    public Task<String> initiateMultipartUpload(final String key, final Task<Void> cancellationToken) {
+        return Task.call(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                checkCancelled(cancellationToken);
+                final InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(s3Bucket, key)
+                        .withCannedACL(CannedAccessControlList.PublicReadWrite);
+                return s3.initiateMultipartUpload(request).getUploadId();
+            }
+        }, FireFileExecutors.network(FireFileExecutors.Priority.SAVE));
+    }
+
+    @Override
+    public Task<String> uploadPart(final String key, final String uploadId, final int partNumber, final File file, final long offset, final long length,
+                                   final ProgressListener progressListener, final Task<Void> cancellationToken) {
+        return Task.call(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                checkCancelled(cancellationToken);
+                final FileInputStream input = new FileInputStream(file);
+                try {
+                    input.getChannel().position(offset);
+                    final UploadPartRequest request = new UploadPartRequest()
+                            .withBucketName(s3Bucket)
+                            .withKey(key)
+                            .withUploadId(uploadId)
+                            .withPartNumber(partNumber)
+                            .withInputStream(new CancellableInputStream(input, cancellationToken))
+                            .withPartSize(length);
+                    if (progressListener != null) {
+                        request.setGeneralProgressListener(new com.amazonaws.event.ProgressListener() {
+                            private long transferred;
+
+                            @Override
+                            public void progressChanged(ProgressEvent progressEvent) {
+                                transferred += progressEvent.getBytesTransferred();
+                                progressListener.onProgress(Math.min(transferred, length), length);
+                            }
+                        });
+                    }
+                    return s3.uploadPart(request).getETag();
+                } catch (AmazonS3Exception e) {
+                    throw translateMultipartError(e, uploadId);
+                } catch (AmazonClientException e) {
+                    // the client may wrap the exception the stream threw on cancellation
+                    checkCancelled(cancellationToken);
+                    throw e;
+                } finally {
+                    FireFileIOUtils.closeQuietly(input);
+                }
+            }
+        }, FireFileExecutors.network(FireFileExecutors.Priority.SAVE));
+    }
+
+    @Override
+    public Task<Void> completeMultipartUpload(final String key, final String uploadId, final List<String> partETags, final Task<Void> cancellationToken) {
+        return Task.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                checkCancelled(cancellationToken);
+                final List<PartETag> parts = new ArrayList<>(partETags.size());
+                for (int i = 0; i < partETags.size(); i++) {
+                    parts.add(new PartETag(i + 1, partETags.get(i)));
+                }
+                try {
+                    s3.completeMultipartUpload(new CompleteMultipartUploadRequest(s3Bucket, key, uploadId, parts));
+                } catch (AmazonS3Exception e) {
+                    throw translateMultipartError(e, uploadId);
+                }
+                return null;
+            }
+        }, FireFileExecutors.network(FireFileExecutors.Priority.SAVE));
+    }
+
+    @Override
+    public Task<Void> abortMultipartUpload(final String key, final String uploadId) {
+        return Task.call(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                s3.abortMultipartUpload(new AbortMultipartUploadRequest(s3Bucket, key, uploadId));
+                return null;
+            }
+        }, FireFileExecutors.network(FireFileExecutors.Priority.SAVE));
+    }
+
+    private static Exception translateNotFound(final AmazonS3Exception e, final String key) {
+        if (e.getStatusCode() == 404) {
+            final FileNotFoundException notFound = new FileNotFoundException("Object '" + key + "' does not exist");
+            notFound.initCause(e);
+            return notFound;
+        }
+        return e;
+    }
+
+    /**
+     * Reports an upload the server no longer knows, e.g. one a lifecycle rule has cleaned up, as
+     * a {@link FileNotFoundException} so that callers stop trying to resume it.
+     */
+    private static Exception translateMultipartError(final AmazonS3Exception e, final String uploadId) {
+        if ("NoSuchUpload".equals(e.getErrorCode())) {
+            final FileNotFoundException notFound = new FileNotFoundException("Multipart upload '" + uploadId + "' does not exist");
+            notFound.initCause(e);
+            return notFound;
+        }
+        return e;
+    }
+
+    private static void copy(final InputStream in, final FileChannel destination, final long offset, final long length,
+                             final ProgressListener progressListener, final Task<Void> cancellationToken) throws IOException {
+        final byte[] buffer = FireFileBufferPool.acquire(length);
+        long transferred = 0;
+        try {
+            int n;
+            while (transferred < length && (n = in.read(buffer, 0, (int) Math.min(buffer.length, length - transferred))) != -1) {
+                checkCancelled(cancellationToken);
+                final ByteBuffer source = ByteBuffer.wrap(buffer, 0, n);
+                while (source.hasRemaining()) {
+                    destination.write(source, offset + transferred + source.position());
+                }
+                transferred += n;
+                if (progressListener != null) {
+                    progressListener.onProgress(transferred, length);
+                }
+            }
+        } finally {
+            FireFileBufferPool.release(buffer);
+        }
+        if (transferred < length) {
+            throw new IOException("Expected " + length + " bytes at offset " + offset + " but got " + transferred);
+        }
+    }
+
+    /**
+     * Aborts a running put or part upload as soon as the cancellation token is cancelled: the
+     * client reads the request body through it, so the next read fails.
+     */
+    private static class CancellableInputStream extends FilterInputStream {
+        private final Task<Void> cancellationToken;
+
+        CancellableInputStream(InputStream in, Task<Void> cancellationToken) {
+            super(in);
+            this.cancellationToken = cancellationToken;
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCancelled(cancellationToken);
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            checkCancelled(cancellationToken);
+            return super.read(buffer, offset, count);
+        }
+
+        @Override
+        public void close() {
+            // the caller owns the underlying stream
+        }
+    }
+
+    private static void checkCancelled(final Task<Void> cancellationToken) {
+        if (cancellationToken != null && cancellationToken.isCancelled()) {
+            throw new CancellationException();
+        }
+    }
+
+    private void cancelOnCancellation(final TransferObserver observer, final Task<Void> cancellationToken) {
+        if (cancellationToken == null) {
+            return;
+        }
+        cancellationToken.continueWith(new Continuation<Void, Void>() {
+            @Override
+            public Void then(Task<Void> task) throws Exception {
+                if (task.isCancelled()) {
+                    transferUtility.cancel(observer.getId());
+                }
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,448 @@
+package com.invisibi.firefile.transfer;
+
+import com.invisibi.firefile.util.FireFileIOUtils;
+import com.invisibi.firefile.util.FireFileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import bolts.Continuation;
+import bolts.Task;
+
+/**
+ * Downloads objects of at least {@code threshold} bytes as {@code segmentSize} byte ranges over
+ * {@code parallelism} concurrent requests. Every range is written straight to its offset in a
+ * pre-sized staging file, which is renamed to the destination once all ranges are in. Smaller
+ * objects are streamed with a single range request.
+ * <p>
+ * A download starts with a plain request for the first segment, whose response also tells the
+ * version and length of the object; every later request is conditional on that ETag, so a
+ * download never mixes two versions of an object. With a {@link TransferJournal}, interrupted
+ * downloads keep their partial file and record that ETag. Only then does the next download look
+ * the object up first, and if it is unchanged it fetches just the missing segments, or the rest
+ * of the stream. Without a journal and with {@code threshold} 0 there is nothing to resume or
+ * split, and that first request fetches the whole object.
+ */
+public class SegmentedDownloader {
+    private static final int MAX_RETRIES = 2;
+    private static final long RETRY_BACKOFF_MILLIS = 500;
+
+    private final TransferBackend transferBackend;
+    private final long threshold;
+    private final long segmentSize;
+    private final int parallelism;
+    private final TransferJournal journal;
+
+    public SegmentedDownloader(final TransferBackend transferBackend, final long threshold, final long segmentSize, final int parallelism) {
+        this(transferBackend, threshold, segmentSize, parallelism, null);
+    }
+
+    public SegmentedDownloader(final TransferBackend transferBackend, final long threshold, final long segmentSize, final int parallelism,
+                               final TransferJournal journal) {
+        this.transferBackend = transferBackend;
+        this.journal = journal;
+        this.threshold = threshold;
+        this.segmentSize = Math.max(segmentSize, FireFileUtils.ONE_MB);
+        this.parallelism = Math.max(parallelism, 1);
+    }
+
+    /**
+     * @param stagingFile      where the ranges are assembled; readers of {@code destination} never
+     *                         see a file with holes
+     * @param destinationReady called, if not {@code null}, with the metadata of the object once
+     *                         {@code destination} holds nothing but a prefix of this version of the
+     *                         object and grows in order from there, i.e. once stale partial data has
+     *                         been checked or dropped. Never called for a segmented download, whose
+     *                         destination appears only when complete.
+     * @return the metadata of the object
+     */
+    public Task<ObjectInfo> download(final String key, final File destination, final File stagingFile,
+                                     final TransferBackend.ObjectInfoListener destinationReady,
+                                     final TransferBackend.ProgressListener progressListener, final Task<Void> cancellationToken) {
+        final Task<ObjectInfo> transfer = isResumable(key, destination, stagingFile)
+                ? downloadVersion(key, destination, stagingFile, destinationReady, progressListener, cancellationToken)
+                : downloadFresh(key, destination, stagingFile, destinationReady, progressListener, cancellationToken);
+        return transfer.continueWithTask(new Continuation<ObjectInfo, Task<ObjectInfo>>() {
+            @Override
+            public Task<ObjectInfo> then(Task<ObjectInfo> task) throws Exception {
+                if (task.isFaulted() && task.getError() instanceof ObjectChangedException) {
+                    // replaced between two requests; the new version drops the old data
+                    return downloadFresh(key, destination, stagingFile, destinationReady, progressListener, cancellationToken);
+                }
+                return task;
+            }
+        });
+    }
+
+    /**
+     * Whether an interrupted download of {@code key} left a journal entry and its partial file.
+     */
+    private boolean isResumable(final String key, final File destination, final File stagingFile) {
+        if (journal == null) {
+            return false;
+        }
+        final TransferJournal.Entry entry = journal.get(journalId(key));
+        return entry != null && (entry.partSize() == 0 ? destination : stagingFile).isFile();
+    }
+
+    /**
+     * Downloads the object without looking it up first. The first request fetches its first
+     * segment unconditionally and tells its version; the rest, if there is any, is fetched
+     * conditionally on that version like a resumed download.
+     */
+    private Task<ObjectInfo> downloadFresh(final String key, final File destination, final File stagingFile,
+                                           final TransferBackend.ObjectInfoListener destinationReady,
+                                           final TransferBackend.ProgressListener progressListener, final Task<Void> cancellationToken) {
+        if (journal != null) {
+            journal.remove(journalId(key));
+        }
+        FireFileUtils.deleteQuietly(destination);
+        FireFileUtils.deleteQuietly(stagingFile);
+        final RandomAccessFile file;
+        try {
+            file = open(destination, -1);
+        } catch (IOException e) {
+            return Task.forError(e);
+        }
+        // with nothing to journal there is no point in stopping after the first segment
+        final long prefixLength = threshold <= 0 && journal == null ? Long.MAX_VALUE : segmentSize;
+        final AtomicReference<ObjectInfo> knownInfo = new AtomicReference<>();
+        return transferBackend.downloadPrefix(key, prefixLength, file.getChannel(), new TransferBackend.ObjectInfoListener() {
+            @Override
+            public void onObjectInfo(ObjectInfo info) {
+                knownInfo.set(info);
+                // readers must not follow a destination that is moved to the staging file later
+                if (isStreamed(info, prefixLength)) {
+                    ready(destinationReady, info);
+                }
+            }
+        }, new TransferBackend.ProgressListener() {
+            @Override
+            public void onProgress(long bytesCurrent, long bytesTotal) {
+                final ObjectInfo info = knownInfo.get();
+                if (progressListener != null) {
+                    progressListener.onProgress(bytesCurrent, info != null ? info.length() : -1);
+                }
+            }
+        }, cancellationToken).continueWithTask(new Continuation<ObjectInfo, Task<ObjectInfo>>() {
+            @Override
+            public Task<ObjectInfo> then(Task<ObjectInfo> task) throws Exception {
+                FireFileIOUtils.closeQuietly(file);
+                if (task.isFaulted() || task.isCancelled()) {
+                    return task;
+                }
+                final ObjectInfo info = task.getResult();
+                final long received = Math.min(prefixLength, info.length());
+                final Task<Void> transfer;
+                if (isStreamed(info, prefixLength)) {
+                    startJournalEntry(key, info, 0);
+                    transfer = downloadStream(key, info, received, destination, progressListener, cancellationToken);
+                } else {
+                    FireFileUtils.moveFile(destination, stagingFile);
+                    final TransferJournal.Entry entry = startJournalEntry(key, info, segmentSize);
+                    if (entry != null) {
+                        entry.completePart(1, null);
+                        journal.put(journalId(key), entry);
+                    }
+                    transfer = downloadSegments(key, info, entry, 1, destination, stagingFile, progressListener, cancellationToken);
+                }
+                return withInfo(transfer, info);
+            }
+        });
+    }
+
+    private boolean isStreamed(final ObjectInfo info, final long prefixLength) {
+        return threshold <= 0 || info.length() < threshold || info.length() <= prefixLength;
+    }
+
+    /**
+     * Looks up the current version of the object and resumes the interrupted download if it is
+     * still that version. Every request is conditional on its ETag, so the journal and the
+     * returned info always describe the bytes written.
+     */
+    private Task<ObjectInfo> downloadVersion(final String key, final File destination, final File stagingFile,
+                                             final TransferBackend.ObjectInfoListener destinationReady,
+                                             final TransferBackend.ProgressListener progressListener, final Task<Void> cancellationToken) {
+        return transferBackend.head(key, cancellationToken).onSuccessTask(new Continuation<ObjectInfo, Task<ObjectInfo>>() {
+            @Override
+            public Task<ObjectInfo> then(Task<ObjectInfo> task) throws Exception {
+                final ObjectInfo info = task.getResult();
+                final Task<Void> transfer;
+                if (threshold <= 0 || info.length() < threshold) {
+                    final TransferJournal.Entry entry = journalEntry(key, info, 0, destination);
+                    final long offset = entry != null && destination.isFile() ? Math.min(destination.length(), info.length()) : 0;
+                    if (offset == 0) {
+                        // a partial file left without a journal entry is not ours to resume
+                        FireFileUtils.deleteQuietly(destination);
+                    }
+                    ready(destinationReady, info);
+                    transfer = downloadStream(key, info, offset, destination, progressListener, cancellationToken);
+                } else {
+                    final TransferJournal.Entry entry = journalEntry(key, info, segmentSize, stagingFile);
+                    transfer = downloadSegments(key, info, entry, 0, destination, stagingFile, progressListener, cancellationToken);
+                }
+                return withInfo(transfer, info);
+            }
+        });
+    }
+
+    private static Task<ObjectInfo> withInfo(final Task<Void> transfer, final ObjectInfo info) {
+        return transfer.onSuccess(new Continuation<Void, ObjectInfo>() {
+            @Override
+            public ObjectInfo then(Task<Void> task) throws Exception {
+                return info;
+            }
+        });
+    }
+
+    /**
+     * Downloads the object from {@code offset} on, after the bytes already in {@code destination}.
+     */
+    private Task<Void> downloadStream(final String key, final ObjectInfo info, final long offset, final File destination,
+                                      final TransferBackend.ProgressListener progressListener, final Task<Void> cancellationToken) throws IOException {
+        final RandomAccessFile file = open(destination, -1);
+        if (offset == info.length()) {
+            FireFileIOUtils.closeQuietly(file);
+            return forgetOnSuccess(Task.<Void>forResult(null), key);
+        }
+        final Task<Void> transfer = transferBackend.downloadRange(key, offset, info.length() - offset, info.eTag(), file.getChannel(),
+                new TransferBackend.ProgressListener() {
+                    @Override
+                    public void onProgress(long bytesCurrent, long bytesTotal) {
+                        if (progressListener != null) {
+                            progressListener.onProgress(offset + bytesCurrent, info.length());
+                        }
+                    }
+                }, cancellationToken).continueWithTask(new Continuation<Void, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<Void> task) throws Exception {
+                FireFileIOUtils.closeQuietly(file);
+                return task;
+            }
+        });
+        return forgetOnSuccess(transfer, key);
+    }
+
+    /**
+     * @param firstSegment segments before it are in the staging file already
+     */
+    private Task<Void> downloadSegments(final String key, final ObjectInfo info, final TransferJournal.Entry entry, final int firstSegment,
+                                        final File destination, final File stagingFile,
+                                        final TransferBackend.ProgressListener progressListener, final Task<Void> cancellationToken) throws IOException {
+        final RandomAccessFile file = open(stagingFile, info.length());
+        return forgetOnSuccess(new Download(key, info.eTag(), info.length(), file.getChannel(), entry, firstSegment, progressListener, cancellationToken)
+                .start()
+                .continueWithTask(new Continuation<Void, Task<Void>>() {
+                    @Override
+                    public Task<Void> then(Task<Void> task) throws Exception {
+                        FireFileIOUtils.closeQuietly(file);
+                        if (task.isFaulted() || task.isCancelled()) {
+                            if (entry == null) {
+                                FireFileUtils.deleteQuietly(stagingFile);
+                            }
+                            return task;
+                        }
+                        FireFileUtils.deleteQuietly(destination);
+                        FireFileUtils.moveFile(stagingFile, destination);
+                        return task;
+                    }
+                }), key);
+    }
+
+    /**
+     * Returns the journal entry to resume from. When the recorded entry is for another version of
+     * the object, stale partial data is dropped and a new entry is started. Returns {@code null}
+     * when the download cannot be journaled.
+     */
+    private TransferJournal.Entry journalEntry(final String key, final ObjectInfo info, final long partSize, final File partialFile) {
+        if (journal == null || info.eTag() == null) {
+            return null;
+        }
+        final TransferJournal.Entry entry = journal.get(journalId(key));
+        if (entry != null && entry.matches(info) && entry.partSize() == partSize && partialFile.isFile()) {
+            return entry;
+        }
+        FireFileUtils.deleteQuietly(partialFile);
+        return startJournalEntry(key, info, partSize);
+    }
+
+    private TransferJournal.Entry startJournalEntry(final String key, final ObjectInfo info, final long partSize) {
+        if (journal == null || info.eTag() == null) {
+            return null;
+        }
+        final TransferJournal.Entry started = new TransferJournal.Entry(key, info.eTag(), info.length(), partSize);
+        journal.put(journalId(key), started);
+        return started;
+    }
+
+    private Task<Void> forgetOnSuccess(final Task<Void> transfer, final String key) {
+        if (journal == null) {
+            return transfer;
+        }
+        return transfer.onSuccess(new Continuation<Void, Void>() {
+            @Override
+            public Void then(Task<Void> task) throws Exception {
+                journal.remove(journalId(key));
+                return null;
+            }
+        });
+    }
+
+    private static void ready(final TransferBackend.ObjectInfoListener destinationReady, final ObjectInfo info) {
+        if (destinationReady != null) {
+            destinationReady.onObjectInfo(info);
+        }
+    }
+
+    private static String journalId(final String key) {
+        return "download:" + key;
+    }
+
+    /**
+     * @param length size to give the file, or -1 to leave it as it is
+     */
+    private static RandomAccessFile open(final File file, final long length) throws IOException {
+        final File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Directory '" + parent + "' could not be created");
+        }
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (length >= 0) {
+                randomAccessFile.setLength(length);
+            }
+        } catch (IOException e) {
+            FireFileIOUtils.closeQuietly(randomAccessFile);
+            throw e;
+        }
+        return randomAccessFile;
+    }
+
+    private class Download {
+        private final String key;
+        private final String eTag;
+        private final long length;
+        private final FileChannel channel;
+        private final TransferBackend.ProgressListener progressListener;
+        private final Task<Void> cancellationToken;
+        private final TransferJournal.Entry entry;
+        private final int segmentCount;
+        private final int firstSegment;
+        private final AtomicInteger nextSegment = new AtomicInteger();
+        private final AtomicLongArray segmentProgress;
+        private final AtomicLong transferred = new AtomicLong();
+        private volatile Exception error;
+
+        Download(String key, String eTag, long length, FileChannel channel, TransferJournal.Entry entry, int firstSegment,
+                 TransferBackend.ProgressListener progressListener, Task<Void> cancellationToken) {
+            this.key = key;
+            this.eTag = eTag;
+            this.entry = entry;
+            this.firstSegment = firstSegment;
+            this.length = length;
+            this.channel = channel;
+            this.progressListener = progressListener;
+            this.cancellationToken = cancellationToken;
+            segmentCount = (int) Math.max(1, (length + segmentSize - 1) / segmentSize);
+            segmentProgress = new AtomicLongArray(segmentCount);
+        }
+
+        Task<Void> start() {
+            final List<Task<Void>> workers = new ArrayList<>();
+            for (int i = 0; i < Math.min(parallelism, segmentCount); i++) {
+                workers.add(downloadNextSegment());
+            }
+            return Task.whenAll(workers).continueWithTask(new Continuation<Void, Task<Void>>() {
+                @Override
+                public Task<Void> then(Task<Void> task) throws Exception {
+                    if (error != null) {
+                        return Task.forError(error);
+                    }
+                    if (isCancelled()) {
+                        return Task.cancelled();
+                    }
+                    return Task.forResult(null);
+                }
+            });
+        }
+
+        private Task<Void> downloadNextSegment() {
+            if (error != null || isCancelled()) {
+                return Task.forResult(null);
+            }
+            int segment = nextSegment.getAndIncrement();
+            while (segment < segmentCount && (segment < firstSegment || entry != null && entry.part(segment + 1) != null)) {
+                // finished before this download started, or before it was interrupted
+                onSegmentProgress(segment, Math.min(segmentSize, length - segment * segmentSize));
+                segment = nextSegment.getAndIncrement();
+            }
+            if (segment >= segmentCount) {
+                return Task.forResult(null);
+            }
+            final int claimedSegment = segment;
+            return downloadSegment(claimedSegment, 0).continueWithTask(new Continuation<Void, Task<Void>>() {
+                @Override
+                public Task<Void> then(Task<Void> task) throws Exception {
+                    if (task.isFaulted()) {
+                        error = task.getError();
+                        return Task.forResult(null);
+                    }
+                    if (task.isCancelled()) {
+                        return Task.forResult(null);
+                    }
+                    if (entry != null) {
+                        entry.completePart(claimedSegment + 1, null);
+                        journal.put(journalId(key), entry);
+                    }
+                    return downloadNextSegment();
+                }
+            });
+        }
+
+        private Task<Void> downloadSegment(final int segment, final int attempt) {
+            final long offset = segment * segmentSize;
+            final long segmentLength = Math.min(segmentSize, length - offset);
+            onSegmentProgress(segment, 0);
+            return transferBackend.downloadRange(key, offset, segmentLength, eTag, channel, new TransferBackend.ProgressListener() {
+                @Override
+                public void onProgress(long bytesCurrent, long bytesTotal) {
+                    onSegmentProgress(segment, bytesCurrent);
+                }
+            }, cancellationToken).continueWithTask(new Continuation<Void, Task<Void>>() {
+                @Override
+                public Task<Void> then(Task<Void> task) throws Exception {
+                    if (!task.isFaulted() || task.getError() instanceof ObjectChangedException || attempt >= MAX_RETRIES || error != null
+                            || isCancelled()) {
+                        return task;
+                    }
+                    return Task.delay(RETRY_BACKOFF_MILLIS << attempt).continueWithTask(new Continuation<Void, Task<Void>>() {
+                        @Override
+                        public Task<Void> then(Task<Void> ignored) throws Exception {
+                            return downloadSegment(segment, attempt + 1);
+                        }
+                    });
+                }
+            });
+        }
+
+        private void onSegmentProgress(final int segment, final long bytesCurrent) {
+            final long delta = bytesCurrent - segmentProgress.getAndSet(segment, bytesCurrent);
+            final long total = transferred.addAndGet(delta);
+            if (progressListener != null && delta != 0) {
+                progressListener.onProgress(total, length);
+            }
+        }
+
+        private boolean isCancelled() {
+            return cancellationToken != null && cancellationToken.isCancelled();
+        }
+    }
+}
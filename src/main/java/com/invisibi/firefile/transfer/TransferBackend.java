@@ -0,0 +1,95 @@
+package com.invisibi.firefile.transfer;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import bolts.Task;
+
+/**
+ * Moves object bytes between the local cache and a remote object store. Keys are the object
+ * keys inside the store (e.g. "file/&lt;objectId&gt;"), not full URLs.
+ */
+public interface TransferBackend {
+
+    interface ProgressListener {
+        /**
+         * @param bytesCurrent bytes transferred so far; for downloads these bytes are already
+         *                     written to the destination file
+         * @param bytesTotal   total bytes of the transfer, or -1 when unknown
+         */
+        void onProgress(long bytesCurrent, long bytesTotal);
+    }
+
+    interface ObjectInfoListener {
+        void onObjectInfo(ObjectInfo info);
+    }
+
+    Task<Void> upload(String key, File file, ProgressListener progressListener, Task<Void> cancellationToken);
+
+    /**
+     * Uploads {@code length} bytes read from {@code input}, e.g. an in-memory payload, without
+     * staging them in a file first. The stream is not closed.
+     *
+     * @param contentEncoding stored as the object's Content-Encoding, or {@code null}
+     */
+    Task<Void> upload(String key, InputStream input, long length, String contentEncoding, ProgressListener progressListener, Task<Void> cancellationToken);
+
+    Task<Void> download(String key, File destination, ProgressListener progressListener, Task<Void> cancellationToken);
+
+    /**
+     * Fails with a {@link java.io.FileNotFoundException} when there is no object under {@code key}.
+     */
+    Task<ObjectInfo> head(String key, Task<Void> cancellationToken);
+
+    /**
+     * Conditional download: writes the object to {@code destination} unless its ETag still equals
+     * {@code eTag}, in which case only the answer to the condition is transferred.
+     *
+     * @param eTag the ETag of the copy at hand, or {@code null} to download unconditionally
+     * @return the metadata of the downloaded object, or {@code null} when it was not modified
+     */
+    Task<ObjectInfo> downloadIfModified(String key, File destination, String eTag, ProgressListener progressListener, Task<Void> cancellationToken);
+
+    /**
+     * Downloads {@code length} bytes starting at {@code offset} and writes them at the same
+     * offset of {@code destination}.
+     *
+     * @param eTag the version the bytes must come from, or {@code null} for the current one; when
+     *             the object has changed the task fails with an {@link ObjectChangedException}
+     */
+    Task<Void> downloadRange(String key, long offset, long length, String eTag, FileChannel destination, ProgressListener progressListener,
+                             Task<Void> cancellationToken);
+
+    /**
+     * Downloads the first {@code length} bytes of the current version of the object, or all of it
+     * when it is shorter, to the start of {@code destination}. Takes a single request, which also
+     * answers what {@link #head} would.
+     *
+     * @param infoListener called, if not {@code null}, with the metadata of the object as soon as
+     *                     the response starts and before any byte is written
+     * @return the metadata of the whole object the bytes came from
+     */
+    Task<ObjectInfo> downloadPrefix(String key, long length, FileChannel destination, ObjectInfoListener infoListener, ProgressListener progressListener,
+                                    Task<Void> cancellationToken);
+
+    /**
+     * Starts a multipart upload of {@code key} and returns its upload id.
+     */
+    Task<String> initiateMultipartUpload(String key, Task<Void> cancellationToken);
+
+    /**
+     * Uploads {@code length} bytes of {@code file} starting at {@code offset} as part
+     * {@code partNumber} (1-based) and returns the part's ETag.
+     */
+    Task<String> uploadPart(String key, String uploadId, int partNumber, File file, long offset, long length,
+                            ProgressListener progressListener, Task<Void> cancellationToken);
+
+    /**
+     * Assembles the object from its parts, ordered by part number.
+     */
+    Task<Void> completeMultipartUpload(String key, String uploadId, List<String> partETags, Task<Void> cancellationToken);
+
+    Task<Void> abortMultipartUpload(String key, String uploadId);
+}
@@ -0,0 +1,182 @@
+package com.invisibi.firefile.transfer;
+
+import com.invisibi.firefile.cache.DiskCache;
+import com.invisibi.firefile.util.FireFileUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * On-disk record of unfinished transfers, one small JSON file per transfer, so that a transfer
+ * interrupted by a crash or a cancel can pick up where it stopped. Entries are keyed by an
+ * arbitrary transfer id and stay until the transfer completes or they are removed.
+ */
+public class TransferJournal {
+    private static final String SUFFIX = ".json";
+
+    private final File directory;
+
+    public TransferJournal(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the recorded entry, or {@code null} when there is none or it cannot be read
+     */
+    public synchronized Entry get(String id) {
+        final File file = getFile(id);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return Entry.fromJSON(FireFileUtils.readFileToJSONObject(file));
+        } catch (IOException | JSONException e) {
+            FireFileUtils.deleteQuietly(file);
+            return null;
+        }
+    }
+
+    public synchronized void put(String id, Entry entry) {
+        try {
+            FireFileUtils.writeJSONObjectToFile(getFile(id), entry.toJSON());
+        } catch (IOException | JSONException e) {
+            // the transfer just cannot be resumed
+        }
+    }
+
+    public synchronized void remove(String id) {
+        FireFileUtils.deleteQuietly(getFile(id));
+    }
+
+    /**
+     * Removes the entries that have not been updated since {@code time}, i.e. transfers that were
+     * never resumed, and returns them so that the caller can release what they hold on the server.
+     */
+    public synchronized List<Entry> removeOlderThan(long time) {
+        final List<Entry> removed = new ArrayList<>();
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return removed;
+        }
+        for (File file : files) {
+            if (!file.getName().endsWith(SUFFIX) || file.lastModified() >= time) {
+                continue;
+            }
+            try {
+                removed.add(Entry.fromJSON(FireFileUtils.readFileToJSONObject(file)));
+            } catch (IOException | JSONException e) {
+                // unreadable, so there is nothing to release
+            }
+            FireFileUtils.deleteQuietly(file);
+        }
+        return removed;
+    }
+
+    public synchronized void clear() {
+        FireFileUtils.deleteQuietly(directory);
+    }
+
+    private File getFile(String id) {
+        return new File(directory, DiskCache.keyFor(id) + SUFFIX);
+    }
+
+    /**
+     * One transfer: the object and, for downloads, the remote version it was started against,
+     * plus the parts that are already done. Parts are multipart parts for uploads, with their
+     * ETags, and segments for downloads.
+     */
+    public static class Entry {
+        private final String objectKey;
+        private final String eTag;
+        private final long length;
+        private final long partSize;
+        private String uploadId;
+        private final Map<Integer, String> parts = new TreeMap<>();
+
+        public Entry(String objectKey, String eTag, long length, long partSize) {
+            this.objectKey = objectKey;
+            this.eTag = eTag;
+            this.length = length;
+            this.partSize = partSize;
+        }
+
+        public String objectKey() {
+            return objectKey;
+        }
+
+        public String eTag() {
+            return eTag;
+        }
+
+        public long length() {
+            return length;
+        }
+
+        public long partSize() {
+            return partSize;
+        }
+
+        public synchronized String uploadId() {
+            return uploadId;
+        }
+
+        public synchronized Entry uploadId(String uploadId) {
+            this.uploadId = uploadId;
+            return this;
+        }
+
+        public synchronized String part(int partNumber) {
+            return parts.get(partNumber);
+        }
+
+        public synchronized void completePart(int partNumber, String eTag) {
+            parts.put(partNumber, eTag != null ? eTag : "");
+        }
+
+        /**
+         * Whether this entry was recorded for the same version of the remote object.
+         */
+        public boolean matches(ObjectInfo info) {
+            return eTag != null && eTag.equals(info.eTag()) && length == info.length();
+        }
+
+        synchronized JSONObject toJSON() throws JSONException {
+            final JSONObject json = new JSONObject();
+            json.put("objectKey", objectKey);
+            if (eTag != null) {
+                json.put("eTag", eTag);
+            }
+            json.put("length", length);
+            json.put("partSize", partSize);
+            if (uploadId != null) {
+                json.put("uploadId", uploadId);
+            }
+            final JSONArray partsJSON = new JSONArray();
+            for (Map.Entry<Integer, String> part : parts.entrySet()) {
+                partsJSON.put(new JSONObject().put("number", part.getKey()).put("eTag", part.getValue()));
+            }
+            json.put("parts", partsJSON);
+            return json;
+        }
+
+        static Entry fromJSON(JSONObject json) throws JSONException {
+            final Entry entry = new Entry(json.getString("objectKey"), json.has("eTag") ? json.getString("eTag") : null,
+                    json.getLong("length"), json.getLong("partSize"));
+            entry.uploadId = json.has("uploadId") ? json.getString("uploadId") : null;
+            final JSONArray partsJSON = json.getJSONArray("parts");
+            for (int i = 0; i < partsJSON.length(); i++) {
+                final JSONObject part = partsJSON.getJSONObject(i);
+                entry.parts.put(part.getInt("number"), part.getString("eTag"));
+            }
+            return entry;
+        }
+    }
+}
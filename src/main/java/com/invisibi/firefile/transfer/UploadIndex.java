@@ -0,0 +1,91 @@
+package com.invisibi.firefile.transfer;
+
+import com.invisibi.firefile.util.FireFileBufferPool;
+import com.invisibi.firefile.util.FireFileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk index from content digests to the object keys they were uploaded under, one small file
+ * per digest, so that content which is saved again can reuse the existing object.
+ */
+public class UploadIndex {
+    private final File directory;
+    private final Map<String, String> keys = new ConcurrentHashMap<>();
+
+    public UploadIndex(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return the hex SHA-256 digest of everything {@code input} yields; the stream is not closed
+     */
+    public static String digest(InputStream input, long expectedSize) throws IOException {
+        final byte[] buffer = FireFileBufferPool.acquire(expectedSize);
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+            return FireFileUtils.toHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            FireFileBufferPool.release(buffer);
+        }
+    }
+
+    /**
+     * @return the object key {@code digest} was uploaded under, or {@code null} when it is unknown
+     */
+    public String get(String digest) {
+        final String key = keys.get(digest);
+        if (key != null) {
+            return key;
+        }
+        final File file = getFile(digest);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            final String stored = FireFileUtils.readFileToString(file, "UTF-8");
+            keys.put(digest, stored);
+            return stored;
+        } catch (IOException e) {
+            FireFileUtils.deleteQuietly(file);
+            return null;
+        }
+    }
+
+    public void put(String digest, String key) {
+        if (key.equals(keys.put(digest, key))) {
+            return;
+        }
+        try {
+            FireFileUtils.writeStringToFile(getFile(digest), key, "UTF-8");
+        } catch (IOException e) {
+            // only remembered until the process ends
+        }
+    }
+
+    public void remove(String digest) {
+        keys.remove(digest);
+        FireFileUtils.deleteQuietly(getFile(digest));
+    }
+
+    public void clear() {
+        keys.clear();
+        FireFileUtils.deleteQuietly(directory);
+    }
+
+    private File getFile(String digest) {
+        return new File(directory, digest);
+    }
+}
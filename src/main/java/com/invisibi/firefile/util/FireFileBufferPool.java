@@ -0,0 +1,95 @@
+package com.invisibi.firefile.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe pool of copy buffers in a few fixed size classes. {@link #acquire(long)} picks the
+ * smallest class that fits the expected transfer, so small files do not pin large buffers and
+ * large files are not copied 4 KB at a time. Each class retains at most
+ * {@link #MAX_POOLED_BYTES_PER_CLASS} bytes of idle buffers.
+ */
+public class FireFileBufferPool {
+    public static final int UNKNOWN_SIZE = -1;
+
+    private static final int[] SIZE_CLASSES = {4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024};
+    private static final int DEFAULT_SIZE_CLASS = 1;
+    private static final int MAX_POOLED_BYTES_PER_CLASS = 512 * 1024;
+
+    private static final Queue<byte[]>[] POOLS;
+    private static final AtomicInteger[] POOLED_COUNTS;
+    private static final AtomicLong ALLOCATIONS = new AtomicLong();
+
+    static {
+        @SuppressWarnings("unchecked")
+        Queue<byte[]>[] pools = new Queue[SIZE_CLASSES.length];
+        POOLS = pools;
+        POOLED_COUNTS = new AtomicInteger[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            POOLS[i] = new ConcurrentLinkedQueue<>();
+            POOLED_COUNTS[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * @param expectedSize bytes expected to pass through the buffer, or {@link #UNKNOWN_SIZE}
+     */
+    public static byte[] acquire(long expectedSize) {
+        final int sizeClass = sizeClassFor(expectedSize);
+        final byte[] buffer = POOLS[sizeClass].poll();
+        if (buffer != null) {
+            POOLED_COUNTS[sizeClass].decrementAndGet();
+            return buffer;
+        }
+        ALLOCATIONS.incrementAndGet();
+        return new byte[SIZE_CLASSES[sizeClass]];
+    }
+
+    /**
+     * @return how many buffers {@link #acquire(long)} has had to allocate so far
+     */
+    static long allocations() {
+        return ALLOCATIONS.get();
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(long)}. The caller must not touch it afterwards.
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        final int sizeClass = indexOf(buffer.length);
+        if (sizeClass < 0) {
+            return;
+        }
+        if (POOLED_COUNTS[sizeClass].incrementAndGet() > MAX_POOLED_BYTES_PER_CLASS / SIZE_CLASSES[sizeClass]) {
+            POOLED_COUNTS[sizeClass].decrementAndGet();
+            return;
+        }
+        POOLS[sizeClass].offer(buffer);
+    }
+
+    private static int sizeClassFor(long expectedSize) {
+        if (expectedSize < 0) {
+            return DEFAULT_SIZE_CLASS;
+        }
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (expectedSize <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return SIZE_CLASSES.length - 1;
+    }
+
+    private static int indexOf(int length) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (SIZE_CLASSES[i] == length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -13,9 +13,6 @@ import java.io.OutputStream;
 public class FireFileIOUtils {
 
     private static final int EOF = -1;
-    private static final int DEFAULT_BUFFER_SIZE = 1024 * 4;
-    private static final int SKIP_BUFFER_SIZE = 2048;
-    private static byte[] SKIP_BYTE_BUFFER;
 
     public static byte[] toByteArray(InputStream input) throws IOException {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
@@ -33,7 +30,21 @@ public class FireFileIOUtils {
 
     public static long copyLarge(InputStream input, OutputStream output)
             throws IOException {
-        return copyLarge(input, output, new byte[DEFAULT_BUFFER_SIZE]);
+        return copyLarge(input, output, FireFileBufferPool.UNKNOWN_SIZE);
+    }
+
+    /**
+     * Like {@link #copyLarge(InputStream, OutputStream)} with a pooled buffer sized for
+     * {@code expectedSize} bytes.
+     */
+    public static long copyLarge(InputStream input, OutputStream output, long expectedSize)
+            throws IOException {
+        final byte[] buffer = FireFileBufferPool.acquire(expectedSize);
+        try {
+            return copyLarge(input, output, buffer);
+        } finally {
+            FireFileBufferPool.release(buffer);
+        }
     }
 
     public static long copyLarge(InputStream input, OutputStream output, byte[] buffer)
@@ -49,28 +60,32 @@ public class FireFileIOUtils {
 
     public static long copyLarge(InputStream input, OutputStream output, long inputOffset, long length)
             throws IOException {
-        return copyLarge(input, output, inputOffset, length, new byte[DEFAULT_BUFFER_SIZE]);
+        final byte[] buffer = FireFileBufferPool.acquire(length > 0 ? length : FireFileBufferPool.UNKNOWN_SIZE);
+        try {
+            return copyLarge(input, output, inputOffset, length, buffer);
+        } finally {
+            FireFileBufferPool.release(buffer);
+        }
     }
 
     public static long skip(InputStream input, long toSkip) throws IOException {
         if (toSkip < 0) {
             throw new IllegalArgumentException("Skip count must be non-negative, actual: " + toSkip);
         }
-        /*
-         * N.B. no need to synchronize this because: - we don't care if the buffer is created multiple times (the data
-         * is ignored) - we always use the same size buffer, so if it it is recreated it will still be OK (if the buffer
-         * size were variable, we would need to synch. to ensure some other thread did not create a smaller one)
-         */
-        if (SKIP_BYTE_BUFFER == null) {
-            SKIP_BYTE_BUFFER = new byte[SKIP_BUFFER_SIZE];
-        }
+        // The skipped bytes are thrown away, but a pooled buffer keeps concurrent skips from
+        // writing into the same array.
+        final byte[] buffer = FireFileBufferPool.acquire(toSkip);
         long remain = toSkip;
-        while (remain > 0) {
-            long n = input.read(SKIP_BYTE_BUFFER, 0, (int) Math.min(remain, SKIP_BUFFER_SIZE));
-            if (n < 0) { // EOF
-                break;
+        try {
+            while (remain > 0) {
+                long n = input.read(buffer, 0, (int) Math.min(remain, buffer.length));
+                if (n < 0) { // EOF
+                    break;
+                }
+                remain -= n;
             }
-            remain -= n;
+        } finally {
+            FireFileBufferPool.release(buffer);
         }
         return toSkip - remain;
     }
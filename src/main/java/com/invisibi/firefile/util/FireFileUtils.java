@@ -7,27 +7,115 @@ package com.invisibi.firefile.util;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.util.Arrays;
 
 public class FireFileUtils {
 
     public static final long ONE_KB = 1024;
     public static final long ONE_MB = ONE_KB * ONE_KB;
     private static final long FILE_COPY_BUFFER_SIZE = ONE_MB * 30;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0f];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * Reads the file into an array sized from the file, so the only allocation is the result
+     * itself. Reading still goes on to the end of the file, in case it changes size meanwhile.
+     */
     public static byte[] readFileToByteArray(File file) throws IOException {
-        InputStream in = null;
+        FileInputStream in = null;
         try {
             in = openInputStream(file);
-            return FireFileIOUtils.toByteArray(in);
+            final long size = in.getChannel().size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Size cannot be greater than Integer max value: " + size);
+            }
+            final byte[] data = new byte[(int) size];
+            int read = 0;
+            int n;
+            while (read < data.length && (n = in.read(data, read, data.length - read)) != -1) {
+                read += n;
+            }
+            if (read < data.length) {
+                // truncated while reading
+                return Arrays.copyOf(data, read);
+            }
+            final int next = in.read();
+            if (next == -1) {
+                return data;
+            }
+            // grown while reading
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            output.write(data);
+            output.write(next);
+            FireFileIOUtils.copyLarge(in, output);
+            return output.toByteArray();
+        } finally {
+            FireFileIOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Reads up to {@code length} bytes starting at {@code offset}; the result is shorter when the
+     * file ends first.
+     *
+     * @throws IllegalArgumentException if {@code offset} or {@code length} is negative
+     */
+    public static byte[] readFileRange(File file, long offset, int length) throws IOException {
+        checkRange(offset, length);
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            final long available = Math.max(0, in.length() - offset);
+            final byte[] data = new byte[(int) Math.min(length, available)];
+            in.seek(offset);
+            in.readFully(data);
+            return data;
+        } finally {
+            FireFileIOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code offset} or {@code length} is negative
+     */
+    public static void checkRange(long offset, long length) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset must not be negative: " + offset);
+        }
+        if (length < 0) {
+            throw new IllegalArgumentException("Length must not be negative: " + length);
+        }
+    }
+
+    /**
+     * Maps the whole file read-only. The mapping stays valid after the file is closed, moved or
+     * deleted.
+     */
+    public static MappedByteBuffer mapReadOnly(File file) throws IOException {
+        RandomAccessFile in = null;
+        try {
+            in = new RandomAccessFile(file, "r");
+            final FileChannel channel = in.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
         } finally {
             FireFileIOUtils.closeQuietly(in);
         }
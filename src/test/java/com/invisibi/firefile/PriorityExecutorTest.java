@@ -0,0 +1,102 @@
+package com.invisibi.firefile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PriorityExecutorTest {
+    private final List<Boolean> prioritySets = Collections.synchronizedList(new ArrayList<Boolean>());
+
+    @Before
+    public void setUp() {
+        PriorityExecutor.setThreadPriority(new PriorityExecutor.ThreadPriority() {
+            @Override
+            public void set(boolean background) {
+                prioritySets.add(background);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        PriorityExecutor.setThreadPriority(PriorityExecutor.ANDROID_THREAD_PRIORITY);
+    }
+
+    @Test
+    public void workerTakesThePriorityOfEachTaskClass() throws Exception {
+        PriorityExecutor executor = new PriorityExecutor("test", 1, 0);
+
+        run(executor, FireFileExecutors.Priority.BACKGROUND);
+        run(executor, FireFileExecutors.Priority.FETCH);
+        run(executor, FireFileExecutors.Priority.SAVE);
+        run(executor, FireFileExecutors.Priority.BACKGROUND);
+
+        // SAVE after FETCH keeps the default priority without setting it again
+        assertEquals(Arrays.asList(true, false, true), prioritySets);
+    }
+
+    @Test
+    public void prioritizedWorkRunsBeforeQueuedWork() throws Exception {
+        PriorityExecutor executor = new PriorityExecutor("test", 1, TimeUnit.MINUTES.toMillis(1));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(3);
+        executor.executor(FireFileExecutors.Priority.FETCH, null).execute(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                await(release);
+                done.countDown();
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        executor.executor(FireFileExecutors.Priority.SAVE, null).execute(recording(order, "save", done));
+        executor.executor(FireFileExecutors.Priority.BACKGROUND, "tag").execute(recording(order, "tagged", done));
+
+        assertEquals(1, executor.prioritize("tag", FireFileExecutors.Priority.FETCH));
+        release.countDown();
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("tagged", "save"), order);
+    }
+
+    private static void run(PriorityExecutor executor, FireFileExecutors.Priority priority) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        executor.executor(priority, null).execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    private static Runnable recording(final List<String> order, final String name, final CountDownLatch done) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(name);
+                done.countDown();
+            }
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.invisibi.firefile;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bolts.Continuation;
+import bolts.Task;
+import bolts.TaskCompletionSource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TaskQueueTest {
+    private final ExecutorService workers = Executors.newFixedThreadPool(8);
+    private final AtomicInteger readers = new AtomicInteger();
+    private final AtomicInteger writers = new AtomicInteger();
+    private final AtomicInteger overlaps = new AtomicInteger();
+    private final AtomicInteger maxReaders = new AtomicInteger();
+
+    @After
+    public void tearDown() {
+        workers.shutdownNow();
+    }
+
+    @Test
+    public void sharedTasksRunConcurrently() throws Exception {
+        TaskQueue queue = new TaskQueue();
+        CountDownLatch bothStarted = new CountDownLatch(2);
+        Task<Void> first = queue.enqueueShared(waitingFor(bothStarted));
+        Task<Void> second = queue.enqueueShared(waitingFor(bothStarted));
+
+        assertTrue(awaitAll(first, second));
+    }
+
+    @Test
+    public void exclusiveTaskWaitsForEarlierReaders() throws Exception {
+        TaskQueue queue = new TaskQueue();
+        TaskCompletionSource<Void> reading = new TaskCompletionSource<>();
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        Task<Void> read = queue.enqueueShared(completing(reading.getTask(), events, "read"));
+        Task<Void> write = queue.enqueue(completing(Task.<Void>forResult(null), events, "write"));
+        Task<Void> laterRead = queue.enqueueShared(completing(Task.<Void>forResult(null), events, "laterRead"));
+
+        Thread.sleep(50);
+        assertTrue(events.isEmpty());
+        reading.setResult(null);
+
+        assertTrue(awaitAll(read, write, laterRead));
+        assertEquals(3, events.size());
+        assertEquals("read", events.get(0));
+        assertEquals("write", events.get(1));
+        assertEquals("laterRead", events.get(2));
+    }
+
+    @Test
+    public void writerNeverOverlapsReader() throws Exception {
+        final TaskQueue queue = new TaskQueue();
+        final List<Task<Void>> tasks = Collections.synchronizedList(new ArrayList<Task<Void>>());
+        Thread[] producers = new Thread[8];
+        for (int p = 0; p < producers.length; p++) {
+            final Random random = new Random(p);
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        if (random.nextBoolean()) {
+                            tasks.add(queue.enqueue(tracked(writers, readers)));
+                        } else {
+                            tasks.add(queue.enqueueShared(tracked(readers, writers)));
+                        }
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertTrue(awaitAll(tasks.toArray(new Task[tasks.size()])));
+        assertEquals(0, overlaps.get());
+        assertTrue("readers never ran together", maxReaders.get() > 1);
+        queue.waitUntilFinished();
+    }
+
+    /**
+     * Runs on a worker once the queue lets it, counting itself in {@code running} and checking
+     * that nothing counted in {@code excluded} runs at the same time.
+     */
+    private Continuation<Void, Task<Void>> tracked(final AtomicInteger running, final AtomicInteger excluded) {
+        return new Continuation<Void, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<Void> toAwait) throws Exception {
+                return toAwait.continueWithTask(new Continuation<Void, Task<Void>>() {
+                    @Override
+                    public Task<Void> then(Task<Void> task) throws Exception {
+                        return onWorker(new Runnable() {
+                            @Override
+                            public void run() {
+                                final int count = running.incrementAndGet();
+                                if (running == readers) {
+                                    updateMax(count);
+                                } else if (count > 1) {
+                                    overlaps.incrementAndGet();
+                                }
+                                if (excluded.get() != 0) {
+                                    overlaps.incrementAndGet();
+                                }
+                                Thread.yield();
+                                if (excluded.get() != 0) {
+                                    overlaps.incrementAndGet();
+                                }
+                                running.decrementAndGet();
+                            }
+                        });
+                    }
+                });
+            }
+        };
+    }
+
+    private Continuation<Void, Task<Void>> waitingFor(final CountDownLatch started) {
+        return new Continuation<Void, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<Void> toAwait) throws Exception {
+                return toAwait.continueWithTask(new Continuation<Void, Task<Void>>() {
+                    @Override
+                    public Task<Void> then(Task<Void> task) throws Exception {
+                        return onWorker(new Runnable() {
+                            @Override
+                            public void run() {
+                                started.countDown();
+                                try {
+                                    // only returns in time when the other task runs meanwhile
+                                    if (!started.await(5, TimeUnit.SECONDS)) {
+                                        throw new IllegalStateException("ran alone");
+                                    }
+                                } catch (InterruptedException e) {
+                                    throw new IllegalStateException(e);
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+        };
+    }
+
+    private static Continuation<Void, Task<Void>> completing(final Task<Void> work, final List<String> events, final String name) {
+        return new Continuation<Void, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<Void> toAwait) throws Exception {
+                return toAwait.continueWithTask(new Continuation<Void, Task<Void>>() {
+                    @Override
+                    public Task<Void> then(Task<Void> task) throws Exception {
+                        return work.continueWith(new Continuation<Void, Void>() {
+                            @Override
+                            public Void then(Task<Void> task) throws Exception {
+                                events.add(name);
+                                return null;
+                            }
+                        });
+                    }
+                });
+            }
+        };
+    }
+
+    private Task<Void> onWorker(final Runnable runnable) {
+        final TaskCompletionSource<Void> result = new TaskCompletionSource<>();
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runnable.run();
+                    result.setResult(null);
+                } catch (RuntimeException e) {
+                    result.setError(e);
+                }
+            }
+        });
+        return result.getTask();
+    }
+
+    private void updateMax(int count) {
+        int max = maxReaders.get();
+        while (count > max && !maxReaders.compareAndSet(max, count)) {
+            max = maxReaders.get();
+        }
+    }
+
+    /**
+     * @return whether every task succeeded within the timeout
+     */
+    private static boolean awaitAll(Task<?>... tasks) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        for (Task<?> task : tasks) {
+            while (!task.isCompleted()) {
+                if (System.currentTimeMillis() > deadline) {
+                    return false;
+                }
+                Thread.sleep(1);
+            }
+            if (task.isFaulted() || task.isCancelled()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
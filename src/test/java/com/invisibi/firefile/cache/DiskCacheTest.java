@@ -0,0 +1,102 @@
+package com.invisibi.firefile.cache;
+
+import com.invisibi.firefile.util.FireFileUtils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DiskCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void scan_indexesOnlyCacheFiles() throws Exception {
+        File directory = folder.newFolder("cache");
+        DiskCache writer = new DiskCache(directory, 0, 0, null, null);
+        String key = DiskCache.keyFor("object");
+        File file = write(writer.getFile(key), 10);
+        for (String suffix : new String[]{".tmp", ".segments.tmp", SparseCacheFile.DATA_SUFFIX, SparseCacheFile.MAP_SUFFIX}) {
+            write(new File(file.getParentFile(), key + suffix), 10);
+        }
+
+        DiskCache cache = new DiskCache(directory, 0, 0, null, null);
+        cache.getEntry(key);
+
+        assertEquals(1, cache.entryCount());
+        assertEquals(10, cache.size());
+    }
+
+    @Test
+    public void trim_countsAuxiliaryFiles() throws Exception {
+        DiskCache cache = new DiskCache(folder.newFolder("cache"), 10000, 0, EvictionPolicy.LRU, null);
+        String older = put(cache, "older", 3000);
+        Thread.sleep(10);
+        String newer = put(cache, "newer", 3000);
+        write(new File(new File(cache.getDirectory(), "journal"), "transfer"), 6000);
+
+        cache.trim(32);
+
+        assertFalse(cache.getFile(older).exists());
+        assertTrue(cache.getFile(newer).exists());
+        assertEquals(1, cache.entryCount());
+    }
+
+    @Test
+    public void trim_dropsStaleAuxiliaryFilesFirst() throws Exception {
+        DiskCache cache = new DiskCache(folder.newFolder("cache"), 10000, 0, EvictionPolicy.LRU, null);
+        String key = put(cache, "object", 3000);
+        File stale = write(new File(cache.getFile(key).getParentFile(), key + ".tmp"), 20000);
+        assertTrue(stale.setLastModified(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2)));
+
+        cache.trim(32);
+
+        assertFalse(stale.exists());
+        assertTrue(cache.getFile(key).exists());
+        assertEquals(1, cache.entryCount());
+    }
+
+    @Test
+    public void trim_keepsStaleJournalAndSparseFiles() throws Exception {
+        DiskCache cache = new DiskCache(folder.newFolder("cache"), 10000, 0, EvictionPolicy.LRU, null);
+        String key = put(cache, "object", 3000);
+        File shard = cache.getFile(key).getParentFile();
+        String sparseKey = DiskCache.keyFor("sparse");
+        File[] kept = {
+                write(new File(new File(cache.getDirectory(), "journal"), "transfer.json"), 3000),
+                write(new File(new File(cache.getDirectory(), "uploads"), "index"), 3000),
+                write(new File(shard, sparseKey + SparseCacheFile.DATA_SUFFIX), 3000),
+                write(new File(shard, sparseKey + SparseCacheFile.MAP_SUFFIX), 3000)};
+        long stale = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2);
+        for (File file : kept) {
+            assertTrue(file.setLastModified(stale));
+        }
+
+        cache.trim(32);
+
+        for (File file : kept) {
+            assertTrue(file.getPath(), file.exists());
+        }
+        assertFalse(cache.getFile(key).exists());
+    }
+
+    private static String put(DiskCache cache, String objectKey, int length) throws Exception {
+        String key = DiskCache.keyFor(objectKey);
+        write(cache.getFile(key), length);
+        cache.put(key);
+        return key;
+    }
+
+    private static File write(File file, int length) throws Exception {
+        file.getParentFile().mkdirs();
+        FireFileUtils.writeByteArrayToFile(file, new byte[length]);
+        return file;
+    }
+}
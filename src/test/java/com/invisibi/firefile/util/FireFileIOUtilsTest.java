@@ -0,0 +1,113 @@
+package com.invisibi.firefile.util;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FireFileIOUtilsTest {
+    private static final int ONE_MB = 1024 * 1024;
+    // Room for the stream, channel and ByteBuffer wrapper objects around the result array.
+    private static final long ALLOCATION_SLACK = 16 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readFileToByteArray_returnsExactContent() throws Exception {
+        for (int size : new int[]{0, 1, 4097, ONE_MB + 3}) {
+            byte[] data = randomBytes(size);
+            File file = folder.newFile("data-" + size);
+            FireFileUtils.writeByteArrayToFile(file, data);
+
+            byte[] read = FireFileUtils.readFileToByteArray(file);
+
+            assertEquals(size, read.length);
+            assertArrayEquals(data, read);
+        }
+    }
+
+    @Test
+    public void readFileToByteArray_allocatesOnlyTheResult() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+        File file = folder.newFile("data");
+        FireFileUtils.writeByteArrayToFile(file, randomBytes(4 * ONE_MB));
+        for (int i = 0; i < 5; i++) {
+            FireFileUtils.readFileToByteArray(file);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        byte[] read = FireFileUtils.readFileToByteArray(file);
+        long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(4 * ONE_MB, read.length);
+        assertTrue("allocated " + allocated + " bytes", allocated < read.length + ALLOCATION_SLACK);
+    }
+
+    @Test
+    public void copyLarge_reusesPooledBuffers() throws Exception {
+        byte[] data = randomBytes(100 * 1024);
+        // the first copy may find the pool empty
+        FireFileIOUtils.copyLarge(new ByteArrayInputStream(data), new ByteArrayOutputStream());
+        long allocations = FireFileBufferPool.allocations();
+
+        for (int i = 0; i < 10; i++) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            assertEquals(data.length, FireFileIOUtils.copyLarge(new ByteArrayInputStream(data), output));
+            assertArrayEquals(data, output.toByteArray());
+        }
+
+        assertEquals(allocations, FireFileBufferPool.allocations());
+    }
+
+    @Test
+    public void skip_isSafeAcrossThreads() throws Exception {
+        final byte[] data = randomBytes(64 * 1024);
+        final Throwable[] failure = new Throwable[1];
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            ByteArrayInputStream input = new ByteArrayInputStream(data);
+                            assertEquals(1000, FireFileIOUtils.skip(input, 1000));
+                            assertEquals(data[1000] & 0xff, input.read());
+                        }
+                    } catch (Throwable e) {
+                        failure[0] = e;
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}